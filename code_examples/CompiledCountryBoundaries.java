@@ -0,0 +1,130 @@
+package com.sample.mapbox;
+
+import android.content.res.AssetManager;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Country boundaries loaded from the precompiled binary asset (see {@link CountryBoundariesCodec}),
+ * the asset is produced by the build tool <code>com.sample.tools.CountryBoundariesCompiler</code>.<br/><br/>
+ *
+ * The asset is read into a single buffer, only names and envelopes are parsed on load. Country
+ * geometry is decoded on the first request and cached.
+ */
+public class CompiledCountryBoundaries
+{
+    public static final String ASSET_NAME = "country_boundaries.bin";
+
+    private final GeometryFactory geometryFactory;
+
+    private final String[] names;
+
+    private final Envelope[] envelopes;
+
+    private final int[] offsets;
+
+    private final Map<String, Integer> indexByName;
+
+    private final ByteBuffer data;
+
+    private final Geometry[] geometries;
+
+    public static CompiledCountryBoundaries load(AssetManager assetManager, GeometryFactory geometryFactory) throws IOException
+    {
+        InputStream in = assetManager.open(ASSET_NAME, AssetManager.ACCESS_BUFFER);
+        try {
+            // asset streams report the whole remaining asset length
+            byte[] asset = new byte[in.available()];
+            new DataInputStream(in).readFully(asset);
+            if (in.read() >= 0)
+                throw new IOException("Country boundaries asset is longer than reported");
+            return new CompiledCountryBoundaries(asset, geometryFactory);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    CompiledCountryBoundaries(byte[] asset, GeometryFactory geometryFactory) throws IOException
+    {
+        this.geometryFactory = geometryFactory;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(asset));
+        if (in.readInt() != CountryBoundariesCodec.MAGIC)
+            throw new IOException("Not a country boundaries asset");
+
+        short version = in.readShort();
+        if (version != CountryBoundariesCodec.VERSION)
+            throw new IOException("Unsupported country boundaries format version " + version);
+
+        int count = in.readInt();
+        names = new String[count];
+        envelopes = new Envelope[count];
+        offsets = new int[count];
+        geometries = new Geometry[count];
+        indexByName = new HashMap<>(count * 2);
+
+        double resolution = CountryBoundariesCodec.RESOLUTION;
+        for (int i = 0; i < count; i++)
+        {
+            names[i] = in.readUTF();
+            double minX = in.readInt() * resolution, maxX = in.readInt() * resolution;
+            double minY = in.readInt() * resolution, maxY = in.readInt() * resolution;
+            envelopes[i] = new Envelope(minX, maxX, minY, maxY);
+            offsets[i] = in.readInt();
+            indexByName.put(names[i], i);
+        }
+
+        int dataLength = in.readInt();
+        int dataStart = asset.length - in.available();
+        if (dataStart + dataLength > asset.length)
+            throw new IOException("Truncated country boundaries asset");
+
+        data = ByteBuffer.wrap(asset, dataStart, dataLength).slice();
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /** Index of the country by name, -1 if unknown.
+     */
+    public int indexOf(String name) {
+        Integer index = indexByName.get(name);
+        return null == index? -1: index;
+    }
+
+    /** Precomputed country envelope, doesn't decode the geometry.
+     */
+    public Envelope getEnvelope(int index) {
+        return envelopes[index];
+    }
+
+    /** Country geometry decoded on the first request.
+     */
+    public synchronized Geometry getGeometry(int index)
+    {
+        Geometry geometry = geometries[index];
+        if (null == geometry)
+        {
+            ByteBuffer reader = data.duplicate();
+            reader.position(offsets[index]);
+            geometry = CountryBoundariesCodec.readCountry(reader, geometryFactory);
+            geometries[index] = geometry;
+        }
+        return geometry;
+    }
+}
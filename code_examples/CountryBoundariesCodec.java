@@ -0,0 +1,187 @@
+package com.sample.mapbox;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/** Compact binary format of country boundaries, precompiled from the KML asset at build time
+ * and loaded by {@link CompiledCountryBoundaries}.<br/><br/>
+ *
+ * Layout (big endian):
+ * <pre>
+ *   int     magic "CBIN"
+ *   short   format version
+ *   int     country count
+ *   country count x {
+ *       UTF     name
+ *       int     minX, maxX, minY, maxY, quantized
+ *       int     offset of the country record from the data section start
+ *   }
+ *   int     data section length
+ *   country records {
+ *       varint  polygon count
+ *       polygon count x {
+ *           varint  ring count, exterior ring goes first
+ *           ring count x {
+ *               varint  point count
+ *               point count x { zigzag varint dx, dy }
+ *           }
+ *       }
+ *   }
+ * </pre>
+ * Coordinates are quantized to {@link #RESOLUTION} degrees, each ring is delta-encoded from its first point.
+ */
+public final class CountryBoundariesCodec
+{
+    static final int MAGIC = 0x4342494E;
+
+    static final short VERSION = 1;
+
+    /** Coordinate quantization step in degrees (about 1 cm on the equator).
+     */
+    public static final double RESOLUTION = 1e-7;
+
+    private CountryBoundariesCodec() {
+    }
+
+    /** Encode country geometries, map iteration order is kept.
+     */
+    public static void write(Map<String, Geometry> countries, OutputStream stream) throws IOException
+    {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(stream);
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(countries.size());
+
+        for (Map.Entry<String, Geometry> country : countries.entrySet())
+        {
+            Envelope envelope = country.getValue().getEnvelopeInternal();
+            out.writeUTF(country.getKey());
+            out.writeInt((int) Math.floor(envelope.getMinX() / RESOLUTION));
+            out.writeInt((int) Math.ceil(envelope.getMaxX() / RESOLUTION));
+            out.writeInt((int) Math.floor(envelope.getMinY() / RESOLUTION));
+            out.writeInt((int) Math.ceil(envelope.getMaxY() / RESOLUTION));
+            out.writeInt(data.size());
+
+            writeCountry(country.getValue(), data);
+        }
+
+        out.writeInt(data.size());
+        data.writeTo(out);
+        out.flush();
+    }
+
+    /** Decode country record from the buffer positioned at its start.
+     */
+    static Geometry readCountry(ByteBuffer buffer, GeometryFactory factory)
+    {
+        Polygon[] polygons = new Polygon[readVarint(buffer)];
+        for (int i = 0; i < polygons.length; i++)
+        {
+            int ringCount = readVarint(buffer);
+            LinearRing shell = factory.createLinearRing(readRing(buffer, factory));
+            LinearRing[] holes = new LinearRing[ringCount - 1];
+            for (int h = 0; h < holes.length; h++) {
+                holes[h] = factory.createLinearRing(readRing(buffer, factory));
+            }
+            polygons[i] = factory.createPolygon(shell, holes);
+        }
+
+        return polygons.length == 1? polygons[0]: factory.createMultiPolygon(polygons);
+    }
+
+    private static CoordinateSequence readRing(ByteBuffer buffer, GeometryFactory factory)
+    {
+        int pointCount = readVarint(buffer);
+        CoordinateSequence sequence = factory.getCoordinateSequenceFactory().create(pointCount, 2);
+
+        int x = 0, y = 0;
+        for (int i = 0; i < pointCount; i++) {
+            x += zigzagDecode(readVarint(buffer));
+            y += zigzagDecode(readVarint(buffer));
+            sequence.setOrdinate(i, CoordinateSequence.X, x * RESOLUTION);
+            sequence.setOrdinate(i, CoordinateSequence.Y, y * RESOLUTION);
+        }
+        return sequence;
+    }
+
+    private static void writeCountry(Geometry geometry, ByteArrayOutputStream out)
+    {
+        List<Polygon> polygons = new ArrayList<>();
+        for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+            Geometry part = geometry.getGeometryN(i);
+            if (part instanceof Polygon && ! part.isEmpty())
+                polygons.add((Polygon) part);
+        }
+
+        writeVarint(out, polygons.size());
+        for (Polygon polygon : polygons)
+        {
+            writeVarint(out, 1 + polygon.getNumInteriorRing());
+            writeRing(out, polygon.getExteriorRing().getCoordinateSequence());
+            for (int h = 0, n = polygon.getNumInteriorRing(); h < n; h++) {
+                writeRing(out, polygon.getInteriorRingN(h).getCoordinateSequence());
+            }
+        }
+    }
+
+    private static void writeRing(ByteArrayOutputStream out, CoordinateSequence sequence)
+    {
+        int pointCount = sequence.size();
+        writeVarint(out, pointCount);
+
+        int lastX = 0, lastY = 0;
+        for (int i = 0; i < pointCount; i++)
+        {
+            int x = (int) Math.round(sequence.getOrdinate(i, CoordinateSequence.X) / RESOLUTION);
+            int y = (int) Math.round(sequence.getOrdinate(i, CoordinateSequence.Y) / RESOLUTION);
+            writeVarint(out, zigzagEncode(x - lastX));
+            writeVarint(out, zigzagEncode(y - lastY));
+            lastX = x;
+            lastY = y;
+        }
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarint(ByteBuffer buffer)
+    {
+        int value = 0;
+        for (int shift = 0; ; shift += 7)
+        {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    static int zigzagEncode(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int zigzagDecode(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,119 @@
+package com.sample.mapbox;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/** Spatial index of country boundaries for tap and trace queries.<br/><br/>
+ *
+ * Packed R-tree (STRtree) over the envelopes of the precompiled country boundaries is built once when
+ * the boundaries are loaded.
+ * Queries take candidates by envelope and evaluate exact predicates only for them, country
+ * geometries are prepared on the first use and reused by the following queries.
+ */
+public class CountryIndex
+{
+    private static final int NODE_CAPACITY = 8;
+
+    /** Country of the precompiled boundaries, the geometry is decoded when the country becomes a candidate.
+     */
+    private static class Entry
+    {
+        final int order;
+        final String name;
+        final Envelope envelope;
+        final CompiledCountryBoundaries source;
+        private PreparedGeometry prepared;
+
+        Entry(CompiledCountryBoundaries source, int index) {
+            this.order = index;
+            this.name = source.getName(index);
+            this.envelope = source.getEnvelope(index);
+            this.source = source;
+        }
+
+        Geometry getGeometry() {
+            return source.getGeometry(order);
+        }
+
+        synchronized PreparedGeometry getPrepared() {
+            if (null == prepared) {
+                prepared = PreparedGeometryFactory.prepare(getGeometry());
+            }
+            return prepared;
+        }
+    }
+
+    private static final Comparator<Entry> LOAD_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.order < rhs.order ? -1 : (lhs.order == rhs.order ? 0 : 1);
+        }
+    };
+
+    private final STRtree tree = new STRtree(NODE_CAPACITY);
+
+    /** Index over the precompiled boundaries built from their envelopes without decoding geometries,
+     * query results keep the boundaries order.
+     */
+    public CountryIndex(CompiledCountryBoundaries countries)
+    {
+        for (int i = 0, n = countries.size(); i < n; i++) {
+            tree.insert(countries.getEnvelope(i), new Entry(countries, i));
+        }
+        tree.build();
+    }
+
+    /** Names of countries intersected by the sketch.
+     */
+    public List<String> intersect(Geometry sketch)
+    {
+        List<Entry> candidates = candidatesOf(sketch.getEnvelopeInternal());
+
+        List<String> result = new ArrayList<>();
+        for (Entry candidate : candidates) {
+            if (candidate.getPrepared().intersects(sketch))
+                result.add(candidate.name);
+        }
+        return result;
+    }
+
+    /** Names of countries contained in the sketch.
+     */
+    public List<String> containedIn(Geometry sketch)
+    {
+        Envelope sketchEnvelope = sketch.getEnvelopeInternal();
+        List<Entry> candidates = candidatesOf(sketchEnvelope);
+
+        List<String> result = new ArrayList<>();
+        PreparedGeometry preparedSketch = null;
+        for (Entry candidate : candidates)
+        {
+            // contained country must fit the sketch envelope
+            if (! sketchEnvelope.contains(candidate.envelope))
+                continue;
+
+            if (null == preparedSketch) {
+                preparedSketch = PreparedGeometryFactory.prepare(sketch);
+            }
+            if (preparedSketch.contains(candidate.getGeometry()))
+                result.add(candidate.name);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Entry> candidatesOf(Envelope envelope)
+    {
+        List<Entry> candidates = new ArrayList<>((List<Entry>) tree.query(envelope));
+        Collections.sort(candidates, LOAD_ORDER);
+        return candidates;
+    }
+}
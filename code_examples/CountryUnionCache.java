@@ -0,0 +1,214 @@
+package com.sample.mapbox;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+/** Incremental union of country polygons for the ROI editor.<br/><br/>
+ *
+ * The union of the last selection is kept. Any other selection is built through the cascaded union tree:
+ * the selection is split recursively by bits of the country name hash, so adding or removing one country
+ * changes only the nodes on its path while the sibling subsets are taken from the cache. Additions go
+ * through the tree too rather than into the kept result, so the nodes a later removal needs are cached
+ * already. Cached nodes are keyed by their sorted
+ * country subsets and evicted in LRU order when the estimated memory exceeds the limit.
+ */
+class CountryUnionCache
+{
+    /** Subsets of this size or smaller are unioned directly.
+     */
+    private static final int LEAF_SIZE = 4;
+
+    /** Approximate memory footprint of a JTS coordinate with its array slot.
+     */
+    private static final int BYTES_PER_POINT = 40;
+
+    private static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    /** Country geometry provider.
+     */
+    interface GeometrySource {
+        Geometry getCountryGeometry(String name);
+    }
+
+    /** Checked between union steps, lets the caller drop a union superseded by a newer selection.
+     */
+    interface Cancellation {
+        boolean isCancelled();
+    }
+
+    private static final Cancellation NOT_CANCELLABLE = new Cancellation() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static class Node
+    {
+        final Geometry union;
+        final long bytes;
+
+        Node(Geometry union) {
+            this.union = union;
+            this.bytes = (long) union.getNumPoints() * BYTES_PER_POINT;
+        }
+    }
+
+    private final GeometrySource source;
+
+    private final long maxBytes;
+
+    /** Cascaded union tree nodes by sorted country subset, in access order.
+     */
+    private final LinkedHashMap<List<String>, Node> nodes = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long cachedBytes;
+
+    private Set<String> lastSelection = Collections.emptySet();
+
+    private Geometry lastUnion;
+
+    CountryUnionCache(GeometrySource source) {
+        this(source, DEFAULT_MAX_BYTES);
+    }
+
+    CountryUnionCache(GeometrySource source, long maxBytes) {
+        this.source = source;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Union of the country polygons, null for the empty selection.
+     */
+    Geometry union(Collection<String> countries) {
+        return union(countries, NOT_CANCELLABLE);
+    }
+
+    /** Union of the country polygons, null for the empty selection.
+     * @throws CancellationException if cancelled, the tree nodes computed so far stay cached.
+     */
+    synchronized Geometry union(Collection<String> countries, Cancellation cancellation)
+    {
+        Set<String> selection = new HashSet<>(countries);
+        if (selection.isEmpty()) {
+            lastSelection = selection;
+            lastUnion = null;
+            return null;
+        }
+
+        if (selection.equals(lastSelection))
+            return lastUnion;
+
+        List<String> members = new ArrayList<>(selection);
+        Collections.sort(members);
+        Geometry result = unionOf(members, 0, cancellation);
+
+        lastSelection = selection;
+        lastUnion = result;
+        return result;
+    }
+
+    synchronized void clear() {
+        nodes.clear();
+        cachedBytes = 0;
+        lastSelection = Collections.emptySet();
+        lastUnion = null;
+    }
+
+    private Geometry unionOf(List<String> members, int depth, Cancellation cancellation)
+    {
+        Node node = nodes.get(members);
+        if (node != null)
+            return node.union;
+
+        checkCancelled(cancellation);
+
+        Geometry union;
+        if (members.size() <= LEAF_SIZE || depth >= Integer.SIZE)
+        {
+            List<Geometry> geometries = new ArrayList<>(members.size());
+            for (String name : members) {
+                geometries.add(getCountry(name));
+            }
+            union = members.size() == 1? geometries.get(0): CascadedPolygonUnion.union(geometries);
+        }
+        else
+        {
+            List<String> left = new ArrayList<>(), right = new ArrayList<>();
+            for (String name : members) {
+                if ((spread(name.hashCode()) & (1 << depth)) == 0)
+                    left.add(name);
+                else
+                    right.add(name);
+            }
+
+            if (left.isEmpty())
+                union = unionOf(right, depth + 1, cancellation);
+            else if (right.isEmpty())
+                union = unionOf(left, depth + 1, cancellation);
+            else {
+                Geometry leftUnion = unionOf(left, depth + 1, cancellation);
+                Geometry rightUnion = unionOf(right, depth + 1, cancellation);
+                checkCancelled(cancellation);
+                union = leftUnion.union(rightUnion);
+            }
+        }
+
+        put(members, new Node(union));
+        return union;
+    }
+
+    private Geometry getCountry(String name)
+    {
+        List<String> key = Collections.singletonList(name);
+        Node node = nodes.get(key);
+        if (node != null)
+            return node.union;
+
+        Geometry geometry = source.getCountryGeometry(name);
+        put(key, new Node(geometry));
+        return geometry;
+    }
+
+    private void put(List<String> key, Node node)
+    {
+        Node replaced = nodes.put(key, node);
+        if (replaced != null)
+            cachedBytes -= replaced.bytes;
+        cachedBytes += node.bytes;
+
+        Iterator<Map.Entry<List<String>, Node>> eldest = nodes.entrySet().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext())
+        {
+            Map.Entry<List<String>, Node> entry = eldest.next();
+            if (entry.getValue() == node)
+                continue;
+            cachedBytes -= entry.getValue().bytes;
+            eldest.remove();
+        }
+    }
+
+    private static void checkCancelled(Cancellation cancellation) {
+        if (cancellation.isCancelled())
+            throw new CancellationException();
+    }
+
+    /** Mix hash bits so the split is balanced for similar names.
+     */
+    private static int spread(int h) {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+}
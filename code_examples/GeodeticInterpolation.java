@@ -0,0 +1,88 @@
+package com.sample.mapbox;
+
+/** Points along great circle and rhumb line segments given by their end points.<br/><br/>
+ *
+ * Route segment arcs provide their end points and lengths, but no point at a fraction of the length,
+ * so the interpolation is done here from the end points and the segment geometry.
+ *
+ * Fractions are fractions of the segment length: the central angle for the great circle,
+ * the latitude (or longitude along a parallel) change for the rhumb line.
+ */
+class GeodeticInterpolation
+{
+    private GeodeticInterpolation() {
+    }
+
+    /** Point at the fraction of the segment.
+     * @param out Receives latitude, longitude in degrees at offset 0.
+     */
+    static void interpolate(Route2.GEOMETRY geometry, double lat1, double lon1, double lat2, double lon2,
+                            double fraction, double[] out)
+    {
+        if (geometry == Route2.GEOMETRY.RHUMB)
+            rhumb(lat1, lon1, lat2, lon2, fraction, out, 0);
+        else
+            greatCircle(lat1, lon1, lat2, lon2, fraction, out, 0);
+    }
+
+    /** Spherical linear interpolation of the end points unit vectors.
+     */
+    static void greatCircle(double lat1, double lon1, double lat2, double lon2, double fraction, double[] out, int offset)
+    {
+        double phi1 = Math.toRadians(lat1), lambda1 = Math.toRadians(lon1);
+        double phi2 = Math.toRadians(lat2), lambda2 = Math.toRadians(lon2);
+
+        double x1 = Math.cos(phi1) * Math.cos(lambda1), y1 = Math.cos(phi1) * Math.sin(lambda1), z1 = Math.sin(phi1);
+        double x2 = Math.cos(phi2) * Math.cos(lambda2), y2 = Math.cos(phi2) * Math.sin(lambda2), z2 = Math.sin(phi2);
+
+        double angle = centralAngle(lat1, lon1, lat2, lon2);
+        double a, b;
+        if (angle < 1e-12) {
+            a = 1 - fraction;
+            b = fraction;
+        }
+        else {
+            a = Math.sin((1 - fraction) * angle) / Math.sin(angle);
+            b = Math.sin(fraction * angle) / Math.sin(angle);
+        }
+
+        double x = a * x1 + b * x2, y = a * y1 + b * y2, z = a * z1 + b * z2;
+        out[offset] = Math.toDegrees(Math.atan2(z, Math.sqrt(x * x + y * y)));
+        out[offset + 1] = Math.toDegrees(Math.atan2(y, x));
+    }
+
+    /** Constant bearing line, linear in the mercator coordinates.
+     */
+    static void rhumb(double lat1, double lon1, double lat2, double lon2, double fraction, double[] out, int offset)
+    {
+        double deltaLon = normalizeLongitude(lon2 - lon1);
+        double lat = lat1 + fraction * (lat2 - lat1);
+
+        double deltaPsi = mercatorY(lat2) - mercatorY(lat1);
+        double lon = Math.abs(deltaPsi) < 1e-12
+                ? lon1 + fraction * deltaLon
+                : lon1 + (mercatorY(lat) - mercatorY(lat1)) / deltaPsi * deltaLon;
+
+        out[offset] = lat;
+        out[offset + 1] = normalizeLongitude(lon);
+    }
+
+    /** Central angle between the points in radians, haversine formula.
+     */
+    static double centralAngle(double lat1, double lon1, double lat2, double lon2)
+    {
+        double phi1 = Math.toRadians(lat1), phi2 = Math.toRadians(lat2);
+        double sinHalfPhi = Math.sin((phi2 - phi1) / 2);
+        double sinHalfLambda = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double h = sinHalfPhi * sinHalfPhi + Math.cos(phi1) * Math.cos(phi2) * sinHalfLambda * sinHalfLambda;
+        return 2 * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    static double mercatorY(double latitude) {
+        return Math.log(Math.tan(Math.PI / 4 + Math.toRadians(latitude) / 2));
+    }
+
+    static double normalizeLongitude(double longitude) {
+        return longitude - 360 * Math.floor((longitude + 180) / 360);
+    }
+}
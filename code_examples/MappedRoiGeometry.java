@@ -0,0 +1,211 @@
+package com.sample.dal;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Lazy handle of the ROI geometry stored in the binary ROI file (see {@link RoiGeometryCodec}).<br/><br/>
+ *
+ * The file is memory-mapped, only the polygon offsets are indexed on open. Envelopes, ring counts and
+ * ring coordinates are read straight from the mapped buffer, JTS polygons are built only for the
+ * polygons actually requested and cached.
+ */
+public class MappedRoiGeometry
+{
+    private static final int ENVELOPE_SIZE = 4 * 8;
+
+    private final ByteBuffer buffer;
+
+    private final GeometryFactory geometryFactory;
+
+    private final byte type;
+
+    private final Envelope envelope;
+
+    /** Buffer offsets of the polygon records, each starts with the polygon envelope.
+     */
+    private final int[] polygonOffsets;
+
+    private final Polygon[] polygons;
+
+    private Geometry geometry;
+
+    /** Map the file and index its polygons.
+     */
+    public static MappedRoiGeometry open(File file, GeometryFactory geometryFactory) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new MappedRoiGeometry(buffer, geometryFactory);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    MappedRoiGeometry(ByteBuffer buffer, GeometryFactory geometryFactory) throws IOException
+    {
+        this.buffer = buffer;
+        this.geometryFactory = geometryFactory;
+
+        if (buffer.limit() < RoiGeometryCodec.HEADER_SIZE || buffer.getInt(0) != RoiGeometryCodec.MAGIC)
+            throw new IOException("Not a ROI geometry file");
+
+        short version = buffer.getShort(4);
+        if (version != RoiGeometryCodec.VERSION)
+            throw new IOException("Unsupported ROI geometry format version " + version);
+
+        type = buffer.get(6);
+        int polygonCount = buffer.getInt(7);
+        envelope = readEnvelope(11);
+
+        // every polygon record takes its envelope and ring count at least
+        if (polygonCount < 0 || polygonCount > (buffer.limit() - RoiGeometryCodec.HEADER_SIZE) / (ENVELOPE_SIZE + 4))
+            throw new IOException("Corrupted ROI geometry file");
+
+        // index polygon records skipping the coordinates, offsets are long so a corrupt count can't overflow
+        polygonOffsets = new int[polygonCount];
+        polygons = new Polygon[polygonCount];
+
+        long offset = RoiGeometryCodec.HEADER_SIZE;
+        for (int i = 0; i < polygonCount; i++)
+        {
+            polygonOffsets[i] = (int) offset;
+            offset = checkedAdvance(offset, ENVELOPE_SIZE);
+
+            int ringCount = checkedInt(offset);
+            offset = checkedAdvance(offset, 4);
+            for (int r = 0; r < ringCount; r++) {
+                offset = checkedAdvance(offset, 4 + 16L * checkedInt(offset));
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return type == RoiGeometryCodec.TYPE_EMPTY || polygonOffsets.length == 0;
+    }
+
+    /** Envelope of the whole geometry.
+     */
+    public Envelope getEnvelope() {
+        return new Envelope(envelope);
+    }
+
+    public int getNumPolygons() {
+        return polygonOffsets.length;
+    }
+
+    public Envelope getPolygonEnvelope(int polygonIndex) {
+        return readEnvelope(polygonOffsets[polygonIndex]);
+    }
+
+    /** Number of polygon rings, exterior ring included.
+     */
+    public int getNumRings(int polygonIndex) {
+        return buffer.getInt(polygonOffsets[polygonIndex] + ENVELOPE_SIZE);
+    }
+
+    public int getNumPoints(int polygonIndex, int ringIndex) {
+        return buffer.getInt(ringOffset(polygonIndex, ringIndex));
+    }
+
+    /** Copy ring coordinates as x, y pairs. The exterior ring has index 0.
+     */
+    public double[] getRingCoordinates(int polygonIndex, int ringIndex)
+    {
+        int offset = ringOffset(polygonIndex, ringIndex);
+        double[] xy = new double[2 * buffer.getInt(offset)];
+        offset += 4;
+        for (int i = 0; i < xy.length; i++, offset += 8) {
+            xy[i] = buffer.getDouble(offset);
+        }
+        return xy;
+    }
+
+    /** JTS polygon built on the first request.
+     */
+    public synchronized Polygon getPolygon(int polygonIndex)
+    {
+        Polygon polygon = polygons[polygonIndex];
+        if (null == polygon)
+        {
+            ByteBuffer reader = buffer.duplicate();
+            reader.position(polygonOffsets[polygonIndex] + ENVELOPE_SIZE);
+            polygon = RoiGeometryCodec.readPolygon(reader, geometryFactory);
+            polygons[polygonIndex] = polygon;
+        }
+        return polygon;
+    }
+
+    /** Whole JTS geometry, built on the first request. Null for the empty geometry.
+     */
+    public synchronized Geometry getGeometry()
+    {
+        if (null == geometry && ! isEmpty())
+        {
+            if (type == RoiGeometryCodec.TYPE_POLYGON && polygons.length == 1) {
+                geometry = getPolygon(0);
+            }
+            else {
+                Polygon[] all = new Polygon[polygons.length];
+                for (int i = 0; i < all.length; i++) {
+                    all[i] = getPolygon(i);
+                }
+                geometry = geometryFactory.createMultiPolygon(all);
+            }
+        }
+        return geometry;
+    }
+
+    private int ringOffset(int polygonIndex, int ringIndex)
+    {
+        int offset = polygonOffsets[polygonIndex] + ENVELOPE_SIZE;
+        int ringCount = buffer.getInt(offset);
+        if (ringIndex < 0 || ringIndex >= ringCount)
+            throw new IndexOutOfBoundsException("Ring " + ringIndex + " of " + ringCount);
+
+        offset += 4;
+        for (int r = 0; r < ringIndex; r++) {
+            offset += 4 + 16 * buffer.getInt(offset);
+        }
+        return offset;
+    }
+
+    private Envelope readEnvelope(int offset)
+    {
+        double minX = buffer.getDouble(offset), maxX = buffer.getDouble(offset + 8);
+        if (maxX < minX)
+            return new Envelope(); // null envelope of the empty geometry
+
+        return new Envelope(minX, maxX, buffer.getDouble(offset + 16), buffer.getDouble(offset + 24));
+    }
+
+    /** Offset past the record of the size, within the buffer.
+     */
+    private long checkedAdvance(long offset, long size) throws IOException
+    {
+        if (offset + size > buffer.limit())
+            throw new IOException("Truncated ROI geometry file");
+        return offset + size;
+    }
+
+    private int checkedInt(long offset) throws IOException
+    {
+        if (offset + 4 > buffer.limit())
+            throw new IOException("Truncated ROI geometry file");
+        int value = buffer.getInt((int) offset);
+        if (value < 0)
+            throw new IOException("Corrupted ROI geometry file");
+        return value;
+    }
+}
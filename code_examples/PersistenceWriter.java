@@ -0,0 +1,305 @@
+package com.sample.dal;
+
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/** Single background writer for persistent data.<br/><br/>
+ *
+ * Writes are queued by key and performed after a short coalescing window, a write queued for a key
+ * which is still pending replaces the previous one. Files are written to a temporary file renamed
+ * over the target, preference edits are committed on the writer thread.<br/><br/>
+ *
+ * Readers of the persisted data call {@link #flush(String)} for the key they read, lifecycle
+ * events (onStop etc.) call {@link #flush()}.
+ */
+public final class PersistenceWriter
+{
+    private static final String TAG = PersistenceWriter.class.getSimpleName();
+
+    private static final long COALESCE_WINDOW_MS = 300;
+
+    /** Data writer, called on the writer thread.
+     */
+    public interface Job {
+        void write() throws IOException;
+    }
+
+    /** File content producer, called on the writer thread.
+     */
+    public interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /** Write metrics hook, called on the writer thread after each write.
+     */
+    public interface Metrics {
+        /**
+         * @param key Key of the write
+         * @param bytes Estimated size of the data written
+         * @param latencyNanos Write duration
+         * @param queuedBytes Estimated size of the data still queued
+         * @param coalescedCount Total number of writes replaced by later writes of the same key
+         */
+        void onWrite(String key, long bytes, long latencyNanos, long queuedBytes, long coalescedCount);
+    }
+
+    private static class PendingWrite
+    {
+        final Job job;
+        final long bytes;
+
+        PendingWrite(Job job, long bytes) {
+            this.job = job;
+            this.bytes = bytes;
+        }
+    }
+
+    private static PersistenceWriter instance;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+        }
+    });
+
+    /** Pending writes by key, guarded by "this".
+     */
+    private final Map<String, PendingWrite> pendingWrites = new HashMap<>();
+
+    private String inFlightKey;
+
+    private long queuedBytes;
+
+    private long coalescedCount;
+
+    private volatile Metrics metrics;
+
+    public static synchronized PersistenceWriter getInstance() {
+        if (null == instance) {
+            instance = new PersistenceWriter();
+        }
+        return instance;
+    }
+
+    private PersistenceWriter() {
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /** Queue the write of the key.
+     * @param key Identifies the data overwritten, writes of the same key are coalesced.
+     * @param bytes Estimated size of the data, used for metrics only.
+     */
+    public void write(final String key, long bytes, Job job)
+    {
+        synchronized (this)
+        {
+            PendingWrite replaced = pendingWrites.put(key, new PendingWrite(job, bytes));
+            queuedBytes += bytes;
+            if (replaced != null) {
+                // already scheduled
+                queuedBytes -= replaced.bytes;
+                coalescedCount++;
+                return;
+            }
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                writePending(key);
+            }
+        }, COALESCE_WINDOW_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Queue the write of the file content, the file path is the key.
+     */
+    public void writeFile(final File file, long bytes, final Content content)
+    {
+        write(file.getPath(), bytes, new Job() {
+            @Override
+            public void write() throws IOException {
+                writeAtomically(file, content);
+            }
+        });
+    }
+
+    /** Queue the file removal, cancels pending writes of the file.
+     */
+    public void deleteFile(final File file)
+    {
+        write(file.getPath(), 0, new Job() {
+            @Override
+            public void write() throws IOException {
+                if (file.exists() && ! file.delete())
+                    throw new IOException("Cannot delete " + file);
+            }
+        });
+    }
+
+    /** Queue the commit of the preferences edit.
+     * @param key Identifies the preference keys overwritten by the edit, e.g. storage name and preference key.
+     */
+    public void commit(String key, final SharedPreferences.Editor editor)
+    {
+        write(key, 0, new Job() {
+            @Override
+            public void write() throws IOException {
+                if (! editor.commit())
+                    throw new IOException("Cannot commit preferences");
+            }
+        });
+    }
+
+    /** Block until the pending write of the key, if any, is completed.
+     */
+    public void flush(final String key)
+    {
+        synchronized (this) {
+            if (! pendingWrites.containsKey(key) && ! key.equals(inFlightKey))
+                return;
+        }
+
+        await(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                writePending(key);
+            }
+        }));
+    }
+
+    /** Block until all pending writes are completed.
+     */
+    public void flush()
+    {
+        synchronized (this) {
+            if (pendingWrites.isEmpty() && null == inFlightKey)
+                return;
+        }
+
+        await(executor.submit(new Runnable() {
+            @Override
+            public void run()
+            {
+                List<String> keys;
+                synchronized (PersistenceWriter.this) {
+                    keys = new ArrayList<>(pendingWrites.keySet());
+                }
+                for (String key : keys) {
+                    writePending(key);
+                }
+            }
+        }));
+    }
+
+    /** Write the file content to the temporary file and rename it over the target.
+     */
+    public static void writeAtomically(File file, Content content) throws IOException
+    {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            content.writeTo(out);
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+
+        if (! tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Cannot rename " + tempFile + " to " + file);
+        }
+    }
+
+    private void writePending(String key)
+    {
+        PendingWrite write;
+        synchronized (this)
+        {
+            write = pendingWrites.remove(key);
+            if (null == write)
+                return;
+
+            queuedBytes -= write.bytes;
+            inFlightKey = key;
+        }
+
+        long start = System.nanoTime();
+        try {
+            write.job.write();
+        }
+        catch (IOException | RuntimeException x) {
+            Log.e(TAG, "Failed to write " + key, x);
+        }
+        long latency = System.nanoTime() - start;
+
+        long queued, coalesced;
+        synchronized (this) {
+            inFlightKey = null;
+            queued = queuedBytes;
+            coalesced = coalescedCount;
+        }
+
+        Metrics m = metrics;
+        if (m != null) {
+            m.onWrite(key, write.bytes, latency, queued, coalesced);
+        }
+    }
+
+    private static void await(Future<?> future)
+    {
+        boolean isInterrupted = false;
+        while (true)
+        {
+            try {
+                future.get();
+                break;
+            }
+            catch (InterruptedException x) {
+                isInterrupted = true;
+            }
+            catch (ExecutionException x) {
+                Log.e(TAG, "Flush failed", x.getCause());
+                break;
+            }
+        }
+
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.sample.dal;
+
+import com.vividsolutions.jts.algorithm.locate.IndexedPointInAreaLocator;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+/** ROI geometry prepared for repeated filter tests.<br/><br/>
+ *
+ * Geometry predicates go to the JTS prepared geometry which keeps its edge index between calls,
+ * point tests go through the indexed point-in-area locator. Both are built once per ROI change,
+ * see {@link RegionOfInterest#getPrepared}.
+ */
+public class PreparedRegionOfInterest
+{
+    private final Geometry geometry;
+
+    private final Envelope envelope;
+
+    private final PreparedGeometry prepared;
+
+    private IndexedPointInAreaLocator pointLocator;
+
+    PreparedRegionOfInterest(Geometry geometry) {
+        this.geometry = geometry;
+        this.envelope = geometry.getEnvelopeInternal();
+        this.prepared = PreparedGeometryFactory.prepare(geometry);
+    }
+
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    public boolean contains(Geometry g) {
+        return prepared.contains(g);
+    }
+
+    public boolean covers(Geometry g) {
+        return prepared.covers(g);
+    }
+
+    public boolean intersects(Geometry g) {
+        return prepared.intersects(g);
+    }
+
+    /** Whether the point is inside the ROI or on its boundary.
+     */
+    public boolean covers(double longitude, double latitude)
+    {
+        if (! envelope.contains(longitude, latitude))
+            return false;
+
+        return getPointLocator().locate(new Coordinate(longitude, latitude)) != Location.EXTERIOR;
+    }
+
+    private synchronized IndexedPointInAreaLocator getPointLocator() {
+        if (null == pointLocator) {
+            pointLocator = new IndexedPointInAreaLocator(geometry);
+        }
+        return pointLocator;
+    }
+}
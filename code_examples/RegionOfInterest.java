@@ -5,13 +5,19 @@ import android.content.SharedPreferences;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKTReader;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /** Region Of Interest with persistence. Provides also list of country names if it
  * is a union of them.
@@ -25,20 +31,51 @@ public class RegionOfInterest
     private final static String STORAGE_FILE_NAME = "ROI";
     private final static String STORAGE_TEMP_FILE_NAME = "ROI_temporary";
 
+    /** ROI geometry is kept in the binary file named after the storage file, see {@link RoiGeometryCodec}.
+     */
+    private final static String GEOMETRY_FILE_SUFFIX = ".roi";
+
     private final static String STORAGE_KEY_COUNTRY_NAMES = "STORAGE_KEY_COUNTRY_NAMES";
+
+    /** Legacy WKT of the ROI geometry, read once on restore and migrated to the binary file.
+     */
     private final static String STORAGE_KEY_ROI = "STORAGE_KEY_ROI";
     private static final String STORAGE_KEY_IS_ROI_ACTIVE = "STORAGE_KEY_IS_ROI_ACTIVE";
 
     private final String storageFileName;
 
+    /** Materialized ROI geometry, null until requested if the ROI is restored from the file.
+     */
     private Geometry roiGeometry;
 
+    /** Lazy handle of the restored ROI file, serves envelope and polygons without the full parse.
+     */
+    private MappedRoiGeometry roiGeometryHandle;
+
+    /** ROI prepared for filter tests, dropped on every geometry change.
+     */
+    private PreparedRegionOfInterest preparedRoi;
+
+    /** Vertex visibility test with cached results, dropped on every geometry change.
+     */
+    private RoiVisibility visibility;
+
+    /** Threads of the parallel visibility tests, started by the first catalog test and stopped by {@link #shutdown()}.
+     */
+    private ForkJoinPool visibilityPool;
+
+    /** Incremented on every geometry change, the visibility cache of an older version is rebuilt.
+     */
+    private int geometryVersion;
+
     private List<String> roiCountries;
 
     private boolean isRestored = false;
 
     private WKTReader wktReader;
 
+    private GeometryFactory geometryFactory;
+
     /**
      *
      */
@@ -65,15 +102,20 @@ public class RegionOfInterest
      */
     private void save(Geometry roiGeometry, List<String> countryNames, Context context, String aStorageFileName)
     {
-        String roiGeometryWkt = (null == roiGeometry)? null: roiGeometry.toText();
         String countryNameCsv = (null == countryNames)? null: TextUtils.join(",", countryNames);
 
-        context.getSharedPreferences(aStorageFileName, Context.MODE_PRIVATE).edit()
-                .putString(STORAGE_KEY_COUNTRY_NAMES, countryNameCsv)
-                .putString(STORAGE_KEY_ROI, roiGeometryWkt)
-                .commit();
+        saveGeometry(roiGeometry, context, aStorageFileName);
+
+        PersistenceWriter.getInstance().commit(getWriteKey(aStorageFileName, STORAGE_KEY_COUNTRY_NAMES),
+                context.getSharedPreferences(aStorageFileName, Context.MODE_PRIVATE).edit()
+                        .putString(STORAGE_KEY_COUNTRY_NAMES, countryNameCsv)
+                        .remove(STORAGE_KEY_ROI));
 
         this.roiGeometry = roiGeometry;
+        this.roiGeometryHandle = null;
+        this.preparedRoi = null;
+        this.visibility = null;
+        this.geometryVersion++;
         this.roiCountries = countryNames;
     }
 
@@ -85,31 +127,35 @@ public class RegionOfInterest
     private void restore(Context context, String aStorageFileName)
     {
         SharedPreferences store = context.getSharedPreferences(aStorageFileName, Context.MODE_PRIVATE);
+        File geometryFile = getGeometryFile(context, aStorageFileName);
+
+        // wait for the data still queued for writing
+        PersistenceWriter writer = PersistenceWriter.getInstance();
+        writer.flush(geometryFile.getPath());
+        writer.flush(getWriteKey(aStorageFileName, STORAGE_KEY_COUNTRY_NAMES));
 
         // roi
-        String roiGeometryWkt = store.getString(STORAGE_KEY_ROI, null);
-        if (TextUtils.isEmpty(roiGeometryWkt)) {
-            roiGeometry = null;
+        roiGeometry = null;
+        roiGeometryHandle = null;
+        preparedRoi = null;
+        visibility = null;
+        geometryVersion++;
+
+        if (geometryFile.exists()) {
+            roiGeometryHandle = restoreGeometry(geometryFile);
         }
-        else
-        {
-            if (null == wktReader) {
-                wktReader = new WKTReader();
-            }
-
-            try
+        else {
+            roiGeometry = restoreLegacyGeometry(store);
+            if (store.contains(STORAGE_KEY_ROI))
             {
-                roiGeometry = wktReader.read(roiGeometryWkt);
-            }
-            catch (ParseException x) {
-                Log.e(TAG, "Error parsing ROI WKT", x);
-                roiGeometry = null;
+                // migrate legacy WKT to the binary file
+                saveGeometry(roiGeometry, context, aStorageFileName);
+                writer.commit(getWriteKey(aStorageFileName, STORAGE_KEY_ROI), store.edit().remove(STORAGE_KEY_ROI));
             }
         }
 
         // country names
-        String countryNameCsv = context.getSharedPreferences(storageFileName,
-                Context.MODE_PRIVATE).getString(STORAGE_KEY_COUNTRY_NAMES, null);
+        String countryNameCsv = store.getString(STORAGE_KEY_COUNTRY_NAMES, null);
 
         if (TextUtils.isEmpty(countryNameCsv)) {
             roiCountries = null;
@@ -121,18 +167,86 @@ public class RegionOfInterest
         isRestored = true;
     }
 
+    private MappedRoiGeometry restoreGeometry(File geometryFile)
+    {
+        if (null == geometryFactory) {
+            geometryFactory = new GeometryFactory();
+        }
+
+        try {
+            return MappedRoiGeometry.open(geometryFile, geometryFactory);
+        }
+        catch (IOException x) {
+            Log.e(TAG, "Error reading ROI geometry file", x);
+            return null;
+        }
+    }
+
+    private Geometry restoreLegacyGeometry(SharedPreferences store)
+    {
+        String roiGeometryWkt = store.getString(STORAGE_KEY_ROI, null);
+        if (TextUtils.isEmpty(roiGeometryWkt))
+            return null;
+
+        if (null == wktReader) {
+            wktReader = new WKTReader();
+        }
+
+        try {
+            return wktReader.read(roiGeometryWkt);
+        }
+        catch (ParseException x) {
+            Log.e(TAG, "Error parsing ROI WKT", x);
+            return null;
+        }
+    }
+
+    private void saveGeometry(final Geometry roiGeometry, Context context, String aStorageFileName)
+    {
+        File geometryFile = getGeometryFile(context, aStorageFileName);
+        if (null == roiGeometry) {
+            PersistenceWriter.getInstance().deleteFile(geometryFile);
+            return;
+        }
+
+        PersistenceWriter.getInstance().writeFile(geometryFile, RoiGeometryCodec.estimateSize(roiGeometry),
+                new PersistenceWriter.Content() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        RoiGeometryCodec.write(roiGeometry, out);
+                    }
+                });
+    }
+
+    private static File getGeometryFile(Context context, String aStorageFileName) {
+        return new File(context.getFilesDir(), aStorageFileName + GEOMETRY_FILE_SUFFIX);
+    }
+
+    /** Key of the queued preferences write, see {@link PersistenceWriter#commit}.
+     */
+    private static String getWriteKey(String aStorageFileName, String storageKey) {
+        return aStorageFileName + ":" + storageKey;
+    }
+
     public void reset(Context context) {
-        context.getSharedPreferences(storageFileName, Context.MODE_PRIVATE).edit()
-                .putString(STORAGE_KEY_ROI, null)
-                .putString(STORAGE_KEY_COUNTRY_NAMES, null)
-                .commit();
+        PersistenceWriter.getInstance().deleteFile(getGeometryFile(context, storageFileName));
+        PersistenceWriter.getInstance().commit(getWriteKey(storageFileName, STORAGE_KEY_COUNTRY_NAMES),
+                context.getSharedPreferences(storageFileName, Context.MODE_PRIVATE).edit()
+                        .remove(STORAGE_KEY_ROI)
+                        .putString(STORAGE_KEY_COUNTRY_NAMES, null));
         this.roiGeometry = null;
+        this.roiGeometryHandle = null;
+        this.preparedRoi = null;
+        this.visibility = null;
+        this.geometryVersion++;
         this.roiCountries = null;
     }
 
 
     public boolean isEmpty() {
-        return null == roiGeometry || roiGeometry.isEmpty();
+        if (roiGeometry != null)
+            return roiGeometry.isEmpty();
+        return null == roiGeometryHandle || roiGeometryHandle.isEmpty();
     }
 
     public List<String> getCountryNames(Context context)
@@ -147,39 +261,124 @@ public class RegionOfInterest
         if (! isRestored) {
             restore(context);
         }
+        return materializeGeometry();
+    }
+
+    /** Bounding box of the ROI, doesn't build the geometry if it is restored from the file.
+     * Null envelope for the empty ROI.
+     */
+    public Envelope getEnvelope(Context context)
+    {
+        if (! isRestored) {
+            restore(context);
+        }
+
+        if (roiGeometry != null)
+            return roiGeometry.getEnvelopeInternal();
+        if (roiGeometryHandle != null)
+            return roiGeometryHandle.getEnvelope();
+        return new Envelope();
+    }
+
+    /** ROI geometry prepared for repeated containment and intersection tests, null if the ROI is empty.
+     */
+    public PreparedRegionOfInterest getPrepared(Context context)
+    {
+        if (null == preparedRoi)
+        {
+            Geometry geometry = getGeometry(context);
+            if (geometry != null && ! geometry.isEmpty()) {
+                preparedRoi = new PreparedRegionOfInterest(geometry);
+            }
+        }
+        return preparedRoi;
+    }
+
+    /** Lazy handle of the stored ROI to read envelopes, ring counts and coordinates of separate polygons
+     * without building the whole geometry. Null if the ROI is empty or was not restored from the file.
+     */
+    public MappedRoiGeometry getGeometryHandle(Context context) {
+        if (! isRestored) {
+            restore(context);
+        }
+        return roiGeometryHandle;
+    }
+
+    private Geometry materializeGeometry() {
+        if (null == roiGeometry && roiGeometryHandle != null) {
+            roiGeometry = roiGeometryHandle.getGeometry();
+        }
         return roiGeometry;
     }
 
-    public boolean isVisibleFrom(Satellite satellite, Context context) {
-        Double minElevation = null;
-        for (Coordinate roiVertex : roiGeometry.getCoordinates()) {
-            double elevation = satellite.getElevationAtPosition(roiVertex.y, roiVertex.x);
-            if (null == minElevation || minElevation > elevation)
-                minElevation = elevation;
+    /** Whether the satellite elevation is non-negative at all ROI vertices. The empty ROI is visible.
+     */
+    public boolean isVisibleFrom(Satellite satellite, Context context)
+    {
+        if (null == visibility || visibility.roiVersion != geometryVersion)
+        {
+            Geometry geometry = getGeometry(context);
+            if (null == geometry || geometry.isEmpty())
+                return true;
+
+            visibility = new RoiVisibility(geometry, geometryVersion);
+        }
+        return visibility.isVisibleFrom(satellite);
+    }
+
+    /** Test the satellite catalog in parallel, all ROI vertices must be visible as in {@link #isVisibleFrom}.
+     * @return Bits set at list indices of the visible satellites, all bits set for the empty ROI.
+     */
+    public BitSet visibleSubset(List<Satellite> satellites, Context context)
+    {
+        if (null == visibility || visibility.roiVersion != geometryVersion)
+        {
+            Geometry geometry = getGeometry(context);
+            if (null == geometry || geometry.isEmpty()) {
+                BitSet all = new BitSet(satellites.size());
+                all.set(0, satellites.size());
+                return all;
+            }
+
+            visibility = new RoiVisibility(geometry, geometryVersion);
+        }
+        if (null == visibilityPool) {
+            visibilityPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return visibility.visibleSubset(satellites, visibilityPool);
+    }
+
+    /** Stop the visibility test threads, the next catalog test starts them again.
+     */
+    public void shutdown()
+    {
+        if (visibilityPool != null) {
+            visibilityPool.shutdown();
+            visibilityPool = null;
         }
-        if (minElevation < 0)
-            return false;
-        return true;
     }
 
     public void copyFromTemporary(Context context) {
         restore(context, STORAGE_TEMP_FILE_NAME);
-        save(roiGeometry, roiCountries, context);
+        save(materializeGeometry(), roiCountries, context);
     }
 
     public void copyToTemporary(Context context) {
-        save(roiGeometry, roiCountries, context, STORAGE_TEMP_FILE_NAME);
+        save(materializeGeometry(), roiCountries, context, STORAGE_TEMP_FILE_NAME);
     }
 
     public boolean isActive(Context context) {
+        PersistenceWriter.getInstance().flush(getWriteKey(STORAGE_FILE_NAME, STORAGE_KEY_IS_ROI_ACTIVE));
         return context.getSharedPreferences(STORAGE_FILE_NAME, Context.MODE_PRIVATE).getBoolean(STORAGE_KEY_IS_ROI_ACTIVE, false);
     }
 
     public void activate(Context context) {
-        context.getSharedPreferences(STORAGE_FILE_NAME, Context.MODE_PRIVATE).edit().putBoolean(STORAGE_KEY_IS_ROI_ACTIVE, true).commit();
+        PersistenceWriter.getInstance().commit(getWriteKey(STORAGE_FILE_NAME, STORAGE_KEY_IS_ROI_ACTIVE),
+                context.getSharedPreferences(STORAGE_FILE_NAME, Context.MODE_PRIVATE).edit().putBoolean(STORAGE_KEY_IS_ROI_ACTIVE, true));
     }
 
     public void deactivate(Context context) {
-        context.getSharedPreferences(STORAGE_FILE_NAME, Context.MODE_PRIVATE).edit().putBoolean(STORAGE_KEY_IS_ROI_ACTIVE, false).commit();
+        PersistenceWriter.getInstance().commit(getWriteKey(STORAGE_FILE_NAME, STORAGE_KEY_IS_ROI_ACTIVE),
+                context.getSharedPreferences(STORAGE_FILE_NAME, Context.MODE_PRIVATE).edit().putBoolean(STORAGE_KEY_IS_ROI_ACTIVE, false));
     }
 }
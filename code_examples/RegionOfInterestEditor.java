@@ -1,7 +1,6 @@
 package com.sample.mapbox;
 
 import android.content.res.AssetManager;
-import android.graphics.PointF;
 import android.os.AsyncTask;
 import android.util.Log;
 import android.view.GestureDetector;
@@ -10,17 +9,18 @@ import android.view.View;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
-import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.views.MapView;
-import com.mapbox.mapboxsdk.views.util.Projection;
-import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.sample.dal.PersistenceWriter;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.geom.MultiPolygon;
 
+import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -76,7 +76,7 @@ public class RegionOfInterestEditor implements RoiEditSurface.Listener
      */
     private Geometry roiGeometry;
 
-    /** Set of countries in case ROI is a union of countries polygons.
+    /** Set of countries in case ROI is a union of countries polygons, always a mutable copy owned by the editor.
      *
      */
     private Set<String> roiCountries = new LinkedHashSet<>();
@@ -90,9 +90,22 @@ public class RegionOfInterestEditor implements RoiEditSurface.Listener
      */
     BaseGeometryLoadTask baseGeometryLoadTask = new BaseGeometryLoadTask();
 
-    /**
+    /** Union of the selected countries kept between edits.
+     */
+    private CountryUnionCache countryUnionCache;
+
+    /** Serializes tap and trace edits of the country selection.
+     */
+    private RoiEditExecutor editExecutor;
+
+    /** Factory of the outline geometries built from the finger trace.
+     */
+    private final GeometryFactory outlineGeometryFactory = new GeometryFactory();
+
+    /** Precompiled country boundaries and their spatial index, null if only the KML boundaries are loaded.
      */
-    TraceEditTask traceEditTask;
+    private volatile CompiledCountryBoundaries compiledBoundaries;
+    private volatile CountryIndex countryIndex;
 
     // ***
 
@@ -142,6 +155,7 @@ public class RegionOfInterestEditor implements RoiEditSurface.Listener
     public void setTo(RegionOfInterest src) {
         roiGeometry = src.getGeometry(mapView.getContext());
         roiCountries = new LinkedHashSet<>(src.getCountryNames(mapView.getContext()));
+        getEditExecutor().reset(roiGeometry, roiCountries);
     }
 
     private void restore()
@@ -160,6 +174,8 @@ public class RegionOfInterestEditor implements RoiEditSurface.Listener
         else
             roiCountries = new LinkedHashSet<>();
 
+        getEditExecutor().reset(roiGeometry, roiCountries);
+
         if (listener != null) {
             listener.onRoiChanged(roiGeometry, roiCountries);
         }
@@ -172,67 +188,63 @@ public class RegionOfInterestEditor implements RoiEditSurface.Listener
             listener.RoiEditorClosed();
     }
 
+    /** Complete the ROI writes still coalescing in the persistence writer, call from the host onPause().
+     */
+    public void onPause() {
+        PersistenceWriter.getInstance().flush();
+    }
+
+    /** Release the edit worker, call when the host is destroyed. Edits in progress are dropped.
+     */
+    public void destroy()
+    {
+        PersistenceWriter.getInstance().flush();
+        if (editExecutor != null) {
+            editExecutor.shutdown();
+            editExecutor = null;
+        }
+    }
+
     /** RoiEditSurface.Listener implementation
      *
      * @param event
      */
     @Override
     public void onSingleTap(MotionEvent event) {
-        TapEditTask task = new TapEditTask(event);
-        task.execute();
+        submitEdit(new TapEdit(event));
     }
 
     /** Add all countries intersected by the current sketch/outline to current region of interest selection.
      */
     @OnClick(R.id.roiIntersectCountries) public void intersectedCountries() {
-        if (null == traceEditTask || traceEditTask.getStatus() == AsyncTask.Status.FINISHED) {
-            traceEditTask = new TraceEditTask(GeometryAction.INTERSECT);
-            traceEditTask.execute();
-        }
+        submitEdit(new TraceEdit(GeometryAction.INTERSECT));
     }
 
     /** Add all countries contained in the current sketch/outline to current region of interest selection.
      */
     @OnClick(R.id.roiIncludeCountries) public void includeCountries() {
-        if (null == traceEditTask || traceEditTask.getStatus() == AsyncTask.Status.FINISHED) {
-            traceEditTask = new TraceEditTask(GeometryAction.INCLUDE);
-            traceEditTask.execute();
-        }
+        submitEdit(new TraceEdit(GeometryAction.INCLUDE));
     }
 
     /** Add the sketch/outline as is to current region of interest selection.
      */
     @OnClick(R.id.roiAddOutline) public void addOutline()
     {
-        Projection projection = mapView.getProjection();
-
         // create polygon from the trace points sequence
-        List<PointF> trace = editSurface.getTrace();
-        int traceLength = trace.size();
-        if (traceLength == 0)
+        float[] trace = editSurface.getTrace();
+        if (trace.length == 0)
             return;
 
-        Coordinate[] geoCoordinates = new Coordinate[traceLength + 1];
-        for (int i = 0; i < traceLength; i++) {
-            PointF sp = trace.get(i);
-            LatLng ll  = (LatLng) projection.fromPixels(sp.x, sp.y);
-            geoCoordinates[i] = new Coordinate(ll.getLongitude(), ll.getLatitude());
-        }
-
-        geoCoordinates[traceLength] = geoCoordinates[0];
+        CoordinateSequence geoSequence = ScreenToGeo.of(mapView).toSequence(trace, true);
 
-        // reverse winding order in case it was wrong
-        if (! CGAlgorithms.isCCW(geoCoordinates))
-        {
-            for (int i = 0, j = geoCoordinates.length - 1; i < j; i++, j--) {
-                Coordinate z = geoCoordinates[i];
-                geoCoordinates[i] = geoCoordinates[j];
-                geoCoordinates[j] = z;
-            }
-        }
+        // valid counter-clockwise polygon, self-intersecting trace is repaired to a multipolygon
+        Geometry outline = sanitizeOutline(geoSequence);
+        if (null == outline)
+            return;
 
-        roiGeometry = CountryBoundaries.getInstance().polygonOf(geoCoordinates);
-        roiCountries.clear();
+        roiGeometry = outline;
+        roiCountries = new LinkedHashSet<>();
+        getEditExecutor().reset(roiGeometry, roiCountries);
         if (listener != null) {
             listener.onRoiChanged(roiGeometry, null);
         }
@@ -256,26 +268,21 @@ public class RegionOfInterestEditor implements RoiEditSurface.Listener
     /** Remove countries intersected by current sketch (finger outline) from ROI collection.
      */
     @OnClick(R.id.roiCutOffCountries) public void cutOffCountries() {
-        if (null == traceEditTask || traceEditTask.getStatus() == AsyncTask.Status.FINISHED) {
-            traceEditTask = new TraceEditTask(GeometryAction.CUTOFF);
-            traceEditTask.execute();
-        }
+        submitEdit(new TraceEdit(GeometryAction.CUTOFF));
     }
 
     /** Remove countries contained inside the current sketch (finger outline) from ROI collection.
      */
     @OnClick(R.id.roiExcludeCountries) public void excludeCountries() {
-        if (null == traceEditTask || traceEditTask.getStatus() == AsyncTask.Status.FINISHED) {
-            traceEditTask = new TraceEditTask(GeometryAction.EXCLUDE);
-            traceEditTask.execute();
-        }
+        submitEdit(new TraceEdit(GeometryAction.EXCLUDE));
     }
 
     /** Empty current ROI selection.
      */
     @OnClick(R.id.roiClearAll) public void clearAll() {
         roiGeometry = null;
-        roiCountries.clear();
+        roiCountries = new LinkedHashSet<>();
+        getEditExecutor().reset(null, roiCountries);
         if (listener != null) {
             listener.onRoiCleared();
         }
@@ -342,10 +349,7 @@ public class RegionOfInterestEditor implements RoiEditSurface.Listener
         @Override
         protected Void doInBackground(Void... params) {
             try {
-                CountryBoundaries countryBoundaries = CountryBoundaries.getInstance();
-                if (! countryBoundaries.isLoaded()) {
-                    countryBoundaries.loadKml(assetManager);
-                }
+                loadBoundaries(assetManager);
             }
             catch (Exception e) {
                 Log.d(TAG, "Cannot load countries geometry!", e);
@@ -359,175 +363,217 @@ public class RegionOfInterestEditor implements RoiEditSurface.Listener
         }
     }
 
-    private class TapEditTask extends AsyncTask<Void, Void, Boolean>
+    /** Toggle countries under the tap.
+     */
+    private class TapEdit implements RoiEditExecutor.Edit
     {
         /** touch center (x, y) and radius "r"
          */
         private final float x, y, r;
 
-        private Projection projection;
-        private AssetManager assetManager;
+        private final ScreenToGeo screenToGeo;
+        private final AssetManager assetManager;
 
-
-        public TapEditTask(MotionEvent event) {
+        public TapEdit(MotionEvent event) {
             this.x = event.getX();
             this.y = event.getY();
             this.r = event.getSize() * MAX_TOUCH_SIZE_2;
+            this.screenToGeo = ScreenToGeo.of(mapView);
+            this.assetManager = editorRootView.getContext().getAssets();
         }
 
         @Override
-        protected void onPreExecute() {
-            projection = mapView.getProjection();
-            assetManager = editorRootView.getContext().getAssets();
-            startProgress(R.string.roi_editor_progress_message_search);
-        }
-
-        @Override
-        protected Boolean doInBackground(Void... params)
+        public void apply(Set<String> countries) throws Exception
         {
-            try
-            {
-                CountryBoundaries countryBoundaries = CountryBoundaries.getInstance();
-                if (!countryBoundaries.isLoaded()) {
-                    countryBoundaries.loadKml(assetManager);
-                }
-
-                LatLng[] lls = new LatLng[]{
-                    (LatLng) projection.fromPixels(x - r, y + r),
-                    (LatLng) projection.fromPixels(x - r, y - r),
-                    (LatLng) projection.fromPixels(x + r, y - r),
-                    (LatLng) projection.fromPixels(x + r, y + r),
-                    (LatLng) projection.fromPixels(x - r, y + r),
-                };
-
-                Coordinate[] geoCoordinates = new Coordinate[5];
-                for (int i = 0; i < 5; i++) {
-                    geoCoordinates[i] = new Coordinate(lls[i].getLongitude(), lls[i].getLatitude());
-                }
-
-                List<String> results = countryBoundaries.intersect(geoCoordinates);
-                for (String result : results) {
-                    if (roiCountries.contains(result)) {
-                        roiCountries.remove(result);
-                    }
-                    else {
-                        roiCountries.add(result);
-                    }
-                }
-
-                if (roiCountries.size() > 0) {
-                    roiGeometry = countryBoundaries.getCountriesUnionRegion(roiCountries);
+            loadBoundaries(assetManager);
+
+            float[] square = new float[] {
+                x - r, y + r,
+                x - r, y - r,
+                x + r, y - r,
+                x + r, y + r,
+            };
+
+            Polygon geoSquare = outlineGeometryFactory.createPolygon(
+                    outlineGeometryFactory.createLinearRing(screenToGeo.toSequence(square, true)), null);
+
+            List<String> results = findCountries(geoSquare, false);
+            for (String result : results) {
+                if (countries.contains(result)) {
+                    countries.remove(result);
                 }
                 else {
-                    if (listener != null) {
-                        listener.onRoiCleared();
-                    }
+                    countries.add(result);
                 }
             }
-            catch (Exception e) {
-                Log.d(TAG, "Failed to find country contained tap!", e);
-                return false;
-            }
-
-            return true;
-        }
-
-        @Override
-        protected void onPostExecute(Boolean isSuccess) {
-            stopProgress();
-            if (listener != null && isSuccess) {
-                listener.onRoiChanged(roiGeometry, roiCountries);
-            }
         }
     }
 
 
-    /**
+    /** Add or remove countries by the finger trace.
      */
-    private class TraceEditTask extends AsyncTask<Void, Void, Boolean>
+    private class TraceEdit implements RoiEditExecutor.Edit
     {
         private final GeometryAction action;
 
-        private List<PointF> fingerTraceCoordinates;
-        private int traceLength;
-        private Projection projection;
-        private AssetManager assetManager;
+        /** Decimated finger trace x, y pairs.
+         */
+        private final float[] fingerTrace;
+        private final ScreenToGeo screenToGeo;
+        private final AssetManager assetManager;
 
-        public TraceEditTask(GeometryAction action) {
+        public TraceEdit(GeometryAction action) {
             this.action = action;
+            this.fingerTrace = editSurface.getTrace();
+            this.screenToGeo = ScreenToGeo.of(mapView);
+            this.assetManager = editorRootView.getContext().getAssets();
         }
 
         @Override
-        protected void onPreExecute() {
-            fingerTraceCoordinates = editSurface.getTrace();
-            traceLength = fingerTraceCoordinates.size();
-            projection = mapView.getProjection();
-            assetManager = editorRootView.getContext().getAssets();
-            startProgress(R.string.roi_editor_progress_message_search);
+        public void apply(Set<String> countries) throws Exception
+        {
+            if (fingerTrace.length == 0)
+                return;
+
+            loadBoundaries(assetManager);
+
+            // an invalid outline would make the predicates throw, a degenerate one can't select anything
+            Geometry outline = sanitizeOutline(screenToGeo.toSequence(fingerTrace, true));
+            if (null == outline)
+                return;
+
+            List<String> found = findCountries(outline, action == GeometryAction.INCLUDE || action == GeometryAction.EXCLUDE);
+
+            if (action == GeometryAction.CUTOFF || action == GeometryAction.EXCLUDE)
+                countries.removeAll(found);
+            else
+                countries.addAll(found);
         }
+    }
 
-        @Override
-        protected Boolean doInBackground(Void... params)
+    /** Load the country boundaries once. The precompiled asset is indexed, the KML is parsed only if
+     * the asset isn't packaged.
+     */
+    private synchronized void loadBoundaries(AssetManager assetManager) throws Exception
+    {
+        if (countryIndex != null)
+            return;
+
+        try {
+            CompiledCountryBoundaries compiled = CompiledCountryBoundaries.load(assetManager, outlineGeometryFactory);
+            countryIndex = new CountryIndex(compiled);
+            compiledBoundaries = compiled;
+            return;
+        }
+        catch (FileNotFoundException x) {
+            Log.d(TAG, "No precompiled country boundaries, loading KML");
+        }
+
+        CountryBoundaries countryBoundaries = CountryBoundaries.getInstance();
+        if (! countryBoundaries.isLoaded()) {
+            countryBoundaries.loadKml(assetManager);
+        }
+    }
+
+    /** Countries intersected by or contained in the polygonal outline.
+     * @param isContained Whether to find contained countries rather than intersected ones.
+     */
+    private List<String> findCountries(Geometry outline, boolean isContained)
+    {
+        CountryIndex index = countryIndex;
+        if (index != null)
+            return isContained? index.containedIn(outline): index.intersect(outline);
+
+        // the KML boundaries predicates take ring coordinate arrays: countries in a hole don't intersect
+        // the outline part, countries reaching into a hole aren't contained in it
+        CountryBoundaries countryBoundaries = CountryBoundaries.getInstance();
+        Set<String> found = new LinkedHashSet<>();
+        for (int i = 0; i < outline.getNumGeometries(); i++)
         {
-            try
+            Polygon part = (Polygon) outline.getGeometryN(i);
+            Coordinate[] shell = part.getExteriorRing().getCoordinates();
+            Set<String> partFound = new LinkedHashSet<>(isContained
+                    ? countryBoundaries.containedIn(shell)
+                    : countryBoundaries.intersect(shell));
+            for (int h = 0; h < part.getNumInteriorRing() && ! partFound.isEmpty(); h++)
             {
-                if (traceLength == 0)
-                    return false;
+                Coordinate[] hole = part.getInteriorRingN(h).getCoordinates();
+                partFound.removeAll(isContained
+                        ? countryBoundaries.intersect(hole)
+                        : countryBoundaries.containedIn(hole));
+            }
+            found.addAll(partFound);
+        }
+        return new ArrayList<>(found);
+    }
 
-                CountryBoundaries countryBoundaries = CountryBoundaries.getInstance();
-                if (! countryBoundaries.isLoaded()) {
-                    countryBoundaries.loadKml(assetManager);
-                }
+    /** Valid outline polygon of the closed trace, null if it encloses nothing.
+     */
+    private Geometry sanitizeOutline(CoordinateSequence geoSequence)
+    {
+        long start = System.nanoTime();
+        Geometry outline = TraceSanitizer.sanitize(geoSequence, outlineGeometryFactory);
+        Log.d(TAG, "Outline of " + geoSequence.size() + " points sanitized in "
+                + (System.nanoTime() - start) / 1000 + " us"
+                + (outline != null && outline.getNumGeometries() > 1? ", repaired to " + outline.getNumGeometries() + " parts": ""));
+        return outline;
+    }
 
-                Coordinate[] geoCoordinates = new Coordinate[traceLength + 1];
-                for (int i = 0; i < traceLength; i++) {
-                    PointF sp = fingerTraceCoordinates.get(i);
-                    LatLng ll  = (LatLng) projection.fromPixels(sp.x, sp.y);
-                    geoCoordinates[i] = new Coordinate(ll.getLongitude(), ll.getLatitude());
-                }
+    private void submitEdit(RoiEditExecutor.Edit edit) {
+        startProgress(R.string.roi_editor_progress_message_search);
+        getEditExecutor().submit(edit);
+    }
 
-                geoCoordinates[traceLength] = geoCoordinates[0];
-
-                switch (action) {
-                    default:
-                    case INTERSECT:
-                        roiCountries.addAll(countryBoundaries.intersect(geoCoordinates));
-                        break;
-                    case INCLUDE:
-                        roiCountries.addAll(countryBoundaries.containedIn(geoCoordinates));
-                        break;
-                    case CUTOFF:
-                        roiCountries.removeAll(countryBoundaries.intersect(geoCoordinates));
-                        break;
-                    case EXCLUDE:
-                        roiCountries.removeAll(countryBoundaries.containedIn(geoCoordinates));
-                        break;
-                }
+    private RoiEditExecutor getEditExecutor()
+    {
+        if (null == editExecutor)
+        {
+            editExecutor = new RoiEditExecutor(getCountryUnionCache(), new RoiEditExecutor.Listener() {
+                @Override
+                public void onRoiSnapshot(Geometry roi, Set<String> countries)
+                {
+                    roiCountries = new LinkedHashSet<>(countries);
+                    if (countries.isEmpty()) {
+                        roiGeometry = null;
+                        if (listener != null) {
+                            listener.onRoiCleared();
+                        }
+                        return;
+                    }
 
-                if (roiCountries.size() > 0) {
-                    roiGeometry = countryBoundaries.getCountriesUnionRegion(roiCountries);
-                }
-                else {
+                    roiGeometry = roi;
                     if (listener != null) {
-                        listener.onRoiCleared();
+                        listener.onRoiChanged(roiGeometry, roiCountries);
                     }
                 }
-            }
-            catch (Exception e) {
-                Log.d(TAG, "Failed to find outline-to-boundaries intersections!", e);
-                return false;
-            }
 
-            return true;
+                @Override
+                public void onEditsCompleted() {
+                    stopProgress();
+                }
+            });
         }
+        return editExecutor;
+    }
 
-        @Override
-        protected void onPostExecute(Boolean isSuccess) {
-            stopProgress();
-            if (listener != null && isSuccess) {
-                listener.onRoiChanged(roiGeometry, roiCountries);
-            }
+    private synchronized CountryUnionCache getCountryUnionCache()
+    {
+        if (null == countryUnionCache)
+        {
+            countryUnionCache = new CountryUnionCache(new CountryUnionCache.GeometrySource() {
+                @Override
+                public Geometry getCountryGeometry(String name)
+                {
+                    CompiledCountryBoundaries compiled = compiledBoundaries;
+                    if (compiled != null) {
+                        int index = compiled.indexOf(name);
+                        return index < 0? outlineGeometryFactory.createPolygon(null, null): compiled.getGeometry(index);
+                    }
+                    return CountryBoundaries.getInstance().getCountriesUnionRegion(Collections.singleton(name));
+                }
+            });
         }
+        return countryUnionCache;
     }
 
     private void startProgress(int messageResourceId) {
@@ -5,9 +5,9 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PointF;
+import android.graphics.Rect;
+import android.util.Log;
 
-import com.goebl.simplify.PointExtractor;
-import com.goebl.simplify.Simplify;
 import com.mapbox.mapboxsdk.events.MapListener;
 import com.mapbox.mapboxsdk.events.RotateEvent;
 import com.mapbox.mapboxsdk.events.ScrollEvent;
@@ -16,42 +16,297 @@ import com.mapbox.mapboxsdk.overlay.Overlay;
 import com.mapbox.mapboxsdk.views.MapView;
 import com.mapbox.mapboxsdk.views.util.Projection;
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.CoordinateFilter;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory;
+import com.vividsolutions.jts.geom.util.AffineTransformation;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by Crysberry on 8/10/15.
  */
 public class RegionOfInterestOverlay extends Overlay implements MapListener
 {
+    public static final String TAG = RegionOfInterestOverlay.class.getSimpleName();
+
+    /** Log array allocations of every path rebuild.
+     */
+    private static final boolean DEBUG_ALLOCATIONS = false;
+
     private static final double SIMPLIFY_TOLERANCE = 1.0;
 
+    /** Projected geometries keep coordinates in primitive arrays.
+     */
+    private static final GeometryFactory PROJECTED_FACTORY = new GeometryFactory(PackedCoordinateSequenceFactory.DOUBLE_FACTORY);
+
+    /** Upper bound of the LOD pyramid height.
+     */
+    private static final int MAX_LOD_LEVELS = 24;
+
+    /** Memory limit of the cached level graphics.
+     */
+    private static final int MAX_CACHED_BYTES = 4 * 1024 * 1024;
+
+    /** Projected coordinates distance used to derive the projected-to-pixels scale.
+     */
+    private static final float TRANSFORM_REFERENCE_DISTANCE = 1 << 20;
+
+    /** Viewport padding on each side of the path window, in viewport sizes.
+     */
+    private static final float WINDOW_PADDING = 0.5f;
+
+    /** Simplified ROI rings in pixels of the zoom level, i.e. projected coordinates scaled by 2^level.
+     */
+    private static class LevelGraphics
+    {
+        final float[][] rings;
+
+        /** Left, top, right, bottom of each ring.
+         */
+        final float[] bounds;
+
+        final int bytes;
+
+        LevelGraphics(float[][] rings)
+        {
+            this.rings = rings;
+            this.bounds = new float[4 * rings.length];
+            int size = 4 * bounds.length;
+            for (int r = 0; r < rings.length; r++)
+            {
+                float[] ring = rings[r];
+                float left = Float.MAX_VALUE, top = Float.MAX_VALUE, right = -Float.MAX_VALUE, bottom = -Float.MAX_VALUE;
+                for (int i = 0; i < ring.length; i += 2) {
+                    left = Math.min(left, ring[i]);
+                    right = Math.max(right, ring[i]);
+                    top = Math.min(top, ring[i + 1]);
+                    bottom = Math.max(bottom, ring[i + 1]);
+                }
+                bounds[4 * r] = left;
+                bounds[4 * r + 1] = top;
+                bounds[4 * r + 2] = right;
+                bounds[4 * r + 3] = bottom;
+                size += 4 * ring.length;
+            }
+            this.bytes = size;
+        }
+    }
+
+    /** Path built by the render worker with the level and the window it covers.
+     */
+    private static class RenderBuffer
+    {
+        final Path path = new Path();
+        int generation;
+        int level;
+        float left, top, right, bottom;
+
+        boolean covers(float left, float top, float right, float bottom) {
+            return left >= this.left && right <= this.right && top >= this.top && bottom <= this.bottom;
+        }
+    }
+
+    /** Geographic to projected coordinates transform of the map projection, taken on the UI thread so the
+     * render worker doesn't touch the projection: projected = origin + scale * (longitude, mercator y).
+     */
+    private static class ProjectedTransform
+    {
+        /** Mercator latitude limit, the poles are projected to the infinity.
+         */
+        private static final double MAX_LATITUDE = 85.05112878;
+
+        final double originX, originY, scaleX, scaleY;
+
+        ProjectedTransform(Projection projection)
+        {
+            PointF point = new PointF();
+            projection.toMapPixelsProjected(0, 0, point);
+            originX = point.x;
+            originY = point.y;
+
+            projection.toMapPixelsProjected(0, 90, point);
+            scaleX = (point.x - originX) / 90;
+
+            projection.toMapPixelsProjected(45, 0, point);
+            scaleY = (point.y - originY) / GeodeticInterpolation.mercatorY(45);
+        }
+
+        double projectX(double longitude) {
+            return originX + scaleX * longitude;
+        }
+
+        double projectY(double latitude) {
+            return originY + scaleY * GeodeticInterpolation.mercatorY(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+        }
+    }
+
+    /** Path wanted by draw, plain values of the UI thread state.
+     */
+    private static class RenderRequest
+    {
+        final int generation;
+        final Geometry roiGeographic;
+        final ProjectedTransform transform;
+        /** Only invalidated by the worker, postInvalidate() is safe off the UI thread.
+         */
+        final MapView mapView;
+        final int level;
+        final float worldWidth;
+        final float left, top, right, bottom;
+
+        RenderRequest(int generation, Geometry roiGeographic, ProjectedTransform transform, MapView mapView,
+                      int level, float worldWidth, float left, float top, float right, float bottom) {
+            this.generation = generation;
+            this.roiGeographic = roiGeographic;
+            this.transform = transform;
+            this.mapView = mapView;
+            this.level = level;
+            this.worldWidth = worldWidth;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+    }
+
+    // *** UI thread state
+
     private Geometry roiGeographic;
 
+    /** Transform of the projection the ROI is prepared with.
+     */
+    private ProjectedTransform geometryTransform;
+
+    /** Incremented on every ROI change, buffers of older generations are rebuilt.
+     */
+    private int geometryGeneration;
+
+    /** Buffer drawn now.
+     */
+    private RenderBuffer frontBuffer;
+
+    private RenderRequest lastRequest;
+
+    // *** Buffers exchange
+
+    /** Buffer built by the worker and not drawn yet.
+     */
+    private final AtomicReference<RenderBuffer> readyBuffer = new AtomicReference<>();
+
+    /** Buffer retired by draw, reused by the worker.
+     */
+    private final AtomicReference<RenderBuffer> spareBuffer = new AtomicReference<>();
+
+    private final AtomicReference<RenderRequest> pendingRequest = new AtomicReference<>();
+
+    /** Request the worker failed to render, draw requests it again.
+     */
+    private final AtomicReference<RenderRequest> failedRequest = new AtomicReference<>();
+
+    /** Held by the drain loop, only one thread touches the render worker state at a time even while
+     * a stopped worker finishes its last render.
+     */
+    private final AtomicBoolean isRendering = new AtomicBoolean();
+
+    /** Started by the first render request, stopped when the overlay is detached.
+     */
+    private ExecutorService renderWorker;
+
+    private final Runnable renderTask = new Runnable() {
+        @Override
+        public void run() {
+            drainRequests();
+        }
+    };
+
+    // *** Render worker state
+
+    private int preparedGeneration = -1;
+
     private Geometry roiProjected;
 
-    private final Path path = new Path();
+    /** Level-of-detail pyramid of the projected ROI, full resolution first, each next LOD is
+     * simplified from the previous one with doubled tolerance.
+     */
+    private Geometry[] lods;
 
-    private final Paint paint = new Paint();
+    /** Maximum deviation of each LOD from the full resolution geometry, in projected units.
+     */
+    private double[] lodErrors;
 
-    /** Leftmost world, rightmost world, center world indices used to draw footprint
-     * instances on "infinite" map scrolling stripe.
-     * TODO Use structure instead of arrays to describe the visible "worlds"
+    /** Level graphics by level in access order, evicted by size.
      */
-    int[] visibleWorldInstances = new int[3];
+    private final LinkedHashMap<Integer, LevelGraphics> levelCache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int cachedBytes;
 
-    private boolean isDirty = true;
+    /** Padded viewport the path is clipped to, in pixels of the path level.
+     */
+    private float windowLeft, windowTop, windowRight, windowBottom;
+
+    /** Sutherland-Hodgman clipping buffers, swapped after every clip edge.
+     */
+    private float[] clipInput = new float[64], clipOutput = new float[64];
+
+    /** Ring scaled to the level pixels, simplified in place.
+     */
+    private float[] ringBuffer = new float[64];
+
+    /** Douglas-Peucker kept vertex marks and pending ranges.
+     */
+    private boolean[] keepBuffer = new boolean[32];
+    private int[] rangeStack = new int[64];
+
+    /** Arrays allocated by the current path rebuild, growing scratch buffers and new level graphics.
+     */
+    private int allocations;
+
+    private volatile int lastRebuildAllocations;
+
+    // *** Drawing
+
+    /** Current projected-to-pixels transform: pixel = projected * viewScale + viewOffset.
+     */
+    private float viewScale, viewOffsetX, viewOffsetY;
+
+    private final PointF transformSource = new PointF(), transformTarget = new PointF();
+
+    private final Rect clipBounds = new Rect();
+
+    private final Paint paint = new Paint();
 
     private boolean isHidden = false;
 
     /**
+     * Geometry is prepared and drawn by the render worker: draw() requests the path of the current zoom level
+     * and viewport, keeps drawing the previous path scaled to the current view until the new one is swapped in.
      *
      * @param roiGeographic
      */
     public RegionOfInterestOverlay(Geometry roiGeographic) {
         this.roiGeographic = roiGeographic;
+        paint.setStyle(Paint.Style.FILL);
+        paint.setColor(Color.argb(0x80, 0xff, 0x88, 0x00));
     }
 
     /**
@@ -67,139 +322,754 @@ public class RegionOfInterestOverlay extends Overlay implements MapListener
         isHidden = false;
     }
 
-    private class ConverterToProjected implements CoordinateFilter
-    {
-        Projection projection;
-        PointF reuse = new PointF();
-
-        public ConverterToProjected(Projection projection) {
-            this.projection = projection;
-            paint.setStyle(Paint.Style.FILL);
-            paint.setColor(Color.argb(0x80, 0xff, 0x88, 0x00));
-        }
-
-        @Override
-        public void filter(Coordinate c) {
-            projection.toMapPixelsProjected(c.y, c.x, reuse);
-            c.x = reuse.x;
-            c.y = reuse.y;
-        }
+    /** Number of arrays allocated by the last path rebuild, for allocation profiling.
+     */
+    public int getLastRebuildAllocations() {
+        return lastRebuildAllocations;
     }
 
     public void prepare(Projection projection) {
         prepareProjected(projection);
-        updateGraphics(projection);
     }
 
+    /** Graphics follow the view on draw.
+     */
     public void update(Projection projection) {
-        updateGraphics(projection);
     }
 
     public void rebuild(Projection projection) {
         prepareProjected(projection);
-        updateGraphics(projection);
     }
 
+    /** Schedule the ROI projection, it is done by the render worker before the next path is built.
+     */
     public void prepareProjected(Projection projection)
     {
-        roiProjected = roiGeographic != null? (Geometry) roiGeographic.clone(): null;
-        if (roiProjected != null)
-            roiProjected.apply(new ConverterToProjected(projection));
+        geometryTransform = new ProjectedTransform(projection);
+        geometryGeneration++;
+    }
+
+    /** Stop the render worker, it is started again by the next draw.<br/><br/>
+     *
+     * A render in progress isn't interrupted, its drain loop keeps isRendering until it returns, so a new
+     * worker isn't started before the old one stops touching the render worker state.
+     */
+    public void shutdown()
+    {
+        pendingRequest.set(null);
+        if (renderWorker != null) {
+            // a drain task that never started doesn't release isRendering itself
+            if (! renderWorker.shutdownNow().isEmpty())
+                isRendering.set(false);
+            renderWorker = null;
+        }
+        lastRequest = null;
+    }
+
+    @Override
+    public void onDetach(MapView mapView) {
+        shutdown();
+        super.onDetach(mapView);
+    }
+
+    private void scheduleRender()
+    {
+        if (null == renderWorker) {
+            renderWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        renderWorker.execute(renderTask);
+    }
+
+    // *** Render worker
+
+    private void drainRequests()
+    {
+        do {
+            try {
+                RenderRequest request;
+                while ((request = pendingRequest.getAndSet(null)) != null) {
+                    try {
+                        render(request);
+                    }
+                    catch (RuntimeException | OutOfMemoryError x) {
+                        // the next request is tried from scratch
+                        Log.e(TAG, "ROI render failed at level " + request.level, x);
+                        preparedGeneration = -1;
+                        failedRequest.set(request);
+                    }
+                }
+            }
+            finally {
+                isRendering.set(false);
+            }
+        }
+        while (pendingRequest.get() != null && isRendering.compareAndSet(false, true));
+    }
+
+    private void render(RenderRequest request)
+    {
+        if (request.generation != preparedGeneration) {
+            roiProjected = request.roiGeographic != null?
+                    project(splitAtAntimeridian(request.roiGeographic), request.transform): null;
+            buildLods();
+            clearLevelCache();
+            preparedGeneration = request.generation;
+        }
+
+        RenderBuffer buffer = spareBuffer.getAndSet(null);
+        if (null == buffer) {
+            buffer = new RenderBuffer();
+        }
+
+        buildPath(buffer, request);
+
+        // a buffer replaced before it was drawn is free for reuse
+        RenderBuffer replaced = readyBuffer.getAndSet(buffer);
+        if (replaced != null)
+            spareBuffer.set(replaced);
+
+        request.mapView.postInvalidate();
+    }
+
+    /** Split polygons crossing the antimeridian to pieces inside [-180, 180] longitudes, so they are
+     * projected in place rather than as bands wrapping around the world.
+     */
+    private static Geometry splitAtAntimeridian(Geometry geographic)
+    {
+        if (! (geographic instanceof Polygon || geographic instanceof MultiPolygon))
+            return geographic;
+
+        GeometryFactory factory = geographic.getFactory();
+        List<Polygon> parts = new ArrayList<>();
+        boolean isSplit = false;
+
+        for (int i = 0, n = geographic.getNumGeometries(); i < n; i++)
+        {
+            Polygon polygon = (Polygon) geographic.getGeometryN(i);
+            Polygon unwrapped = crossesAntimeridian(polygon)? unwrap(polygon): null;
+            if (null == unwrapped) {
+                parts.add(polygon);
+                continue;
+            }
+
+            try
+            {
+                Envelope envelope = unwrapped.getEnvelopeInternal();
+                int firstWorld = (int) Math.floor((envelope.getMinX() + 180) / 360);
+                int lastWorld = (int) Math.floor((envelope.getMaxX() + 180) / 360);
+
+                List<Polygon> pieces = new ArrayList<>();
+                for (int world = firstWorld; world <= lastWorld; world++)
+                {
+                    Geometry box = factory.toGeometry(new Envelope(-180 + 360 * world, 180 + 360 * world, -90, 90));
+                    Geometry piece = unwrapped.intersection(box);
+                    piece.apply(new AffineTransformation().translate(-360 * world, 0));
+                    for (int j = 0; j < piece.getNumGeometries(); j++) {
+                        if (piece.getGeometryN(j) instanceof Polygon && ! piece.getGeometryN(j).isEmpty())
+                            pieces.add((Polygon) piece.getGeometryN(j));
+                    }
+                }
+                parts.addAll(pieces);
+                isSplit = true;
+            }
+            catch (TopologyException x) {
+                Log.d(TAG, "Cannot split polygon at the antimeridian", x);
+                parts.add(polygon);
+            }
+        }
+
+        return isSplit? factory.createMultiPolygon(parts.toArray(new Polygon[parts.size()])): geographic;
+    }
+
+    private static boolean crossesAntimeridian(Polygon polygon)
+    {
+        CoordinateSequence shell = polygon.getExteriorRing().getCoordinateSequence();
+        for (int i = 1, n = shell.size(); i < n; i++) {
+            if (Math.abs(shell.getX(i) - shell.getX(i - 1)) > 180)
+                return true;
+        }
+        return false;
+    }
+
+    /** Polygon with continuous longitudes, rings are shifted to the shell.
+     * @return null if a ring doesn't close when unwrapped, i.e. it encircles a pole.
+     */
+    private static Polygon unwrap(Polygon polygon)
+    {
+        GeometryFactory factory = polygon.getFactory();
+        LinearRing shell = unwrapRing(polygon.getExteriorRing(), Double.NaN);
+        if (null == shell)
+            return null;
+
+        double center = shell.getEnvelopeInternal().centre().x;
+        LinearRing[] holes = new LinearRing[polygon.getNumInteriorRing()];
+        for (int i = 0; i < holes.length; i++) {
+            holes[i] = unwrapRing(polygon.getInteriorRingN(i), center);
+            if (null == holes[i])
+                return null;
+        }
+        return factory.createPolygon(shell, holes);
+    }
+
+    /**
+     * @param center Longitude the ring center is shifted to within 180 degrees, NaN to keep it.
+     */
+    private static LinearRing unwrapRing(LineString ring, double center)
+    {
+        Coordinate[] coordinates = ring.getCoordinates();
+        Coordinate[] unwrapped = new Coordinate[coordinates.length];
+        double previous = coordinates[0].x;
+        for (int i = 0; i < coordinates.length; i++)
+        {
+            double x = coordinates[i].x;
+            while (x - previous > 180)
+                x -= 360;
+            while (x - previous < -180)
+                x += 360;
+            unwrapped[i] = new Coordinate(x, coordinates[i].y);
+            previous = x;
+        }
+
+        if (unwrapped[0].x != unwrapped[unwrapped.length - 1].x)
+            return null;
+
+        if (! Double.isNaN(center))
+        {
+            double shift = 0;
+            double ringCenter = ring.getFactory().createLinearRing(unwrapped).getEnvelopeInternal().centre().x;
+            while (ringCenter + shift - center > 180)
+                shift -= 360;
+            while (ringCenter + shift - center < -180)
+                shift += 360;
+            for (Coordinate c : unwrapped) {
+                c.x += shift;
+            }
+        }
+        return ring.getFactory().createLinearRing(unwrapped);
+    }
+
+    /** Projected copy of the polygonal geometry with coordinates packed to primitive arrays.
+     */
+    private static Geometry project(Geometry geographic, ProjectedTransform transform)
+    {
+        if (geographic instanceof Polygon)
+            return projectPolygon((Polygon) geographic, transform);
+
+        if (geographic instanceof MultiPolygon) {
+            Polygon[] polygons = new Polygon[geographic.getNumGeometries()];
+            for (int i = 0; i < polygons.length; i++) {
+                polygons[i] = projectPolygon((Polygon) geographic.getGeometryN(i), transform);
+            }
+            return PROJECTED_FACTORY.createMultiPolygon(polygons);
+        }
+
+        return null; // not drawn
+    }
+
+    private static Polygon projectPolygon(Polygon polygon, ProjectedTransform transform)
+    {
+        LinearRing[] holes = new LinearRing[polygon.getNumInteriorRing()];
+        for (int i = 0; i < holes.length; i++) {
+            holes[i] = projectRing(polygon.getInteriorRingN(i), transform);
+        }
+        return PROJECTED_FACTORY.createPolygon(projectRing(polygon.getExteriorRing(), transform), holes);
+    }
+
+    private static LinearRing projectRing(LineString ring, ProjectedTransform transform)
+    {
+        CoordinateSequence sequence = ring.getCoordinateSequence();
+        double[] xy = new double[2 * sequence.size()];
+        for (int i = 0, n = sequence.size(); i < n; i++) {
+            xy[2 * i] = transform.projectX(sequence.getX(i));
+            xy[2 * i + 1] = transform.projectY(sequence.getY(i));
+        }
+        return PROJECTED_FACTORY.createLinearRing(new PackedCoordinateSequence.Double(xy, 2));
+    }
+
+    /** Precompute topology-preserving simplifications of the projected ROI. Tolerance starts near the
+     * average segment length, finer simplification doesn't reduce vertices notably, and doubles per LOD
+     * until rings are reduced to the minimum.
+     */
+    private void buildLods()
+    {
+        if (null == roiProjected || roiProjected.isEmpty()) {
+            lods = null;
+            lodErrors = null;
+            return;
+        }
+
+        List<Geometry> geometries = new ArrayList<>();
+        List<Double> errors = new ArrayList<>();
+        geometries.add(roiProjected);
+        errors.add(0.0);
+
+        int minPoints = 4 * countRings(roiProjected);
+        double averageSegmentLength = roiProjected.getBoundary().getLength() / roiProjected.getNumPoints();
+        double tolerance = Math.pow(2, Math.floor(Math.log(averageSegmentLength / 2) / Math.log(2)));
+        double error = 0;
+
+        // degenerate geometry has nothing to simplify
+        if (Double.isNaN(tolerance) || Double.isInfinite(tolerance) || tolerance <= 0) {
+            lods = new Geometry[] { roiProjected };
+            lodErrors = new double[] { 0 };
+            return;
+        }
+
+        Geometry current = roiProjected;
+        while (geometries.size() < MAX_LOD_LEVELS && current.getNumPoints() > minPoints)
+        {
+            Geometry simplified = TopologyPreservingSimplifier.simplify(current, tolerance);
+            error += tolerance;
+            tolerance *= 2;
+            // the rings are at their topology preserving minimum
+            if (simplified.getNumPoints() >= current.getNumPoints())
+                break;
+
+            current = simplified;
+            geometries.add(current);
+            errors.add(error);
+        }
+
+        lods = geometries.toArray(new Geometry[geometries.size()]);
+        lodErrors = new double[errors.size()];
+        for (int i = 0; i < lodErrors.length; i++) {
+            lodErrors[i] = errors.get(i);
+        }
+    }
+
+    /** The coarsest LOD which deviates from the full resolution by less than the simplification tolerance
+     * at the level scale.
+     */
+    private Geometry lodFor(float levelScale)
+    {
+        if (null == lods)
+            return roiProjected;
+
+        for (int i = lods.length - 1; i > 0; i--) {
+            if (lodErrors[i] * levelScale <= SIMPLIFY_TOLERANCE)
+                return lods[i];
+        }
+        return lods[0];
+    }
+
+    private static int countRings(Geometry geometry)
+    {
+        int count = 0;
+        for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+            Geometry part = geometry.getGeometryN(i);
+            if (part instanceof Polygon)
+                count += 1 + ((Polygon) part).getNumInteriorRing();
+        }
+        return count;
     }
 
     public void reset() {
-        path.rewind();
         roiGeographic = null;
+        geometryGeneration++;
     }
 
     public void reset(Geometry roiGeographic, Projection projection) {
         this.roiGeographic = roiGeographic;
         prepareProjected(projection);
-        updateGraphics(projection);
     }
 
-    private final PointF workPoint = new PointF();
-
-    private Simplify<PointF> simplifier = new Simplify<>(new PointF[0], new PointExtractor<PointF>() {
-        @Override
-        public double getX(PointF point) {
-            return point.x;
+    /** Make sure a path of the current zoom level covering the viewport is drawn or being built.
+     * @param clip Viewport in the canvas coordinates.
+     */
+    private void updateGraphics(Projection projection, Rect clip, MapView mapView)
+    {
+        // take the buffer built meanwhile
+        RenderBuffer ready = readyBuffer.getAndSet(null);
+        if (ready != null) {
+            if (frontBuffer != null)
+                spareBuffer.set(frontBuffer);
+            frontBuffer = ready;
         }
 
-        @Override
-        public double getY(PointF point) {
-            return point.y;
+        updateViewTransform(projection);
+
+        // a failed request is not pending anymore
+        RenderRequest failed = failedRequest.getAndSet(null);
+        if (failed != null && failed == lastRequest)
+            lastRequest = null;
+
+        int level = levelOf(viewScale);
+        float levelScale = (float) Math.pow(2, level);
+        float toLevel = levelScale / viewScale;
+
+        // viewport in the path level pixels, world instances are repeated along x every world width
+        float left = (clip.left - viewOffsetX) * toLevel;
+        float right = (clip.right - viewOffsetX) * toLevel;
+        float top = (clip.top - viewOffsetY) * toLevel;
+        float bottom = (clip.bottom - viewOffsetY) * toLevel;
+
+        if (frontBuffer != null && frontBuffer.generation == geometryGeneration
+                && frontBuffer.level == level && frontBuffer.covers(left, top, right, bottom))
+            return;
+
+        // already requested
+        if (lastRequest != null && lastRequest.generation == geometryGeneration && lastRequest.level == level
+                && left >= lastRequest.left && right <= lastRequest.right && top >= lastRequest.top && bottom <= lastRequest.bottom)
+            return;
+
+        float padX = WINDOW_PADDING * (right - left), padY = WINDOW_PADDING * (bottom - top);
+        lastRequest = new RenderRequest(geometryGeneration, roiGeographic, geometryTransform, mapView,
+                level, projection.getWorldWidth() * toLevel, left - padX, top - padY, right + padX, bottom + padY);
+
+        pendingRequest.set(lastRequest);
+        if (isRendering.compareAndSet(false, true)) {
+            scheduleRender();
         }
-    });
+    }
 
-    private void updateGraphics(Projection projection)
+    /** Build the path of the requested level clipped to the requested window, on the render worker.
+     * Every world instance overlapping the window adds only its rings inside the window.
+     */
+    private void buildPath(RenderBuffer buffer, RenderRequest request)
     {
+        allocations = 0;
+        Path path = buffer.path;
         path.rewind();
+        // shells and holes of all polygons in one path, holes are cut by the fill rule
+        path.setFillType(Path.FillType.EVEN_ODD);
+        LevelGraphics graphics = getLevelGraphics(request.level);
+
+        int firstWorld = (int) Math.floor(request.left / request.worldWidth);
+        int lastWorld = (int) Math.floor(request.right / request.worldWidth);
+        for (int world = firstWorld; world <= lastWorld; world++)
+        {
+            // window in the world instance coordinates
+            float shift = world * request.worldWidth;
+            windowLeft = request.left - shift;
+            windowRight = request.right - shift;
+            windowTop = request.top;
+            windowBottom = request.bottom;
+
+            for (int r = 0; r < graphics.rings.length; r++)
+            {
+                float[] ring = graphics.rings[r];
+                float ringLeft = graphics.bounds[4 * r], ringTop = graphics.bounds[4 * r + 1];
+                float ringRight = graphics.bounds[4 * r + 2], ringBottom = graphics.bounds[4 * r + 3];
+
+                // cull rings outside the window
+                if (ringRight < windowLeft || ringLeft > windowRight || ringBottom < windowTop || ringTop > windowBottom)
+                    continue;
+
+                if (ringLeft >= windowLeft && ringRight <= windowRight && ringTop >= windowTop && ringBottom <= windowBottom) {
+                    addRing(path, ring, ring.length, shift);
+                }
+                else {
+                    addRing(path, clipInput, clipRing(ring), shift);
+                }
+            }
+        }
+
+        buffer.generation = request.generation;
+        buffer.level = request.level;
+        buffer.left = request.left;
+        buffer.top = request.top;
+        buffer.right = request.right;
+        buffer.bottom = request.bottom;
+
+        lastRebuildAllocations = allocations;
+        if (DEBUG_ALLOCATIONS)
+            Log.d(TAG, "Path rebuild at level " + request.level + " allocated " + allocations + " arrays");
+    }
+
+    /** Add the ring as a closed contour, the closing vertex repeating the first one is skipped.
+     * @param shift Horizontal offset of the world instance.
+     */
+    private static void addRing(Path path, float[] ring, int n, float shift)
+    {
+        if (n >= 4 && ring[n - 2] == ring[0] && ring[n - 1] == ring[1])
+            n -= 2;
+
+        // collapsed by simplification or clipping
+        if (n < 6)
+            return;
 
-        if (roiProjected instanceof Polygon) {
-            addPolygon((Polygon) roiProjected, projection);
+        path.moveTo(ring[0] + shift, ring[1]);
+        for (int i = 2; i < n; i += 2) {
+            path.lineTo(ring[i] + shift, ring[i + 1]);
         }
-        else if (roiProjected instanceof MultiPolygon) {
-            MultiPolygon multiPolygon = (MultiPolygon) roiProjected;
-            for (int i = 0, n = multiPolygon.getNumGeometries(); i < n; i++) {
-                addPolygon((Polygon) multiPolygon.getGeometryN(i), projection);
+        path.close();
+    }
+
+    /** Clip the closed ring to the path window.
+     * @return Number of the clipped ring coordinates left in clipInput.
+     */
+    private int clipRing(float[] ring)
+    {
+        clipInput = grow(clipInput, ring.length);
+        System.arraycopy(ring, 0, clipInput, 0, ring.length);
+
+        int n = clipEdge(ring.length, 0, windowLeft, true);
+        n = clipEdge(n, 0, windowRight, false);
+        n = clipEdge(n, 1, windowTop, true);
+        return clipEdge(n, 1, windowBottom, false);
+    }
+
+    /** Sutherland-Hodgman step: clip the ring in clipInput by one window edge and swap the buffers.
+     * @param axis 0 for the vertical edge, 1 for the horizontal one.
+     * @param isInsideAbove Whether the inside half-plane lays above the bound.
+     */
+    private int clipEdge(int n, int axis, float bound, boolean isInsideAbove)
+    {
+        if (n == 0)
+            return 0;
+
+        // every ring vertex yields at most two output vertices
+        clipOutput = grow(clipOutput, 2 * n);
+
+        float[] in = clipInput, out = clipOutput;
+        int m = 0;
+
+        float previousX = in[n - 2], previousY = in[n - 1];
+        float previous = axis == 0 ? previousX : previousY;
+        boolean isPreviousInside = isInsideAbove ? previous >= bound : previous <= bound;
+
+        for (int i = 0; i < n; i += 2)
+        {
+            float x = in[i], y = in[i + 1];
+            float current = axis == 0 ? x : y;
+            boolean isInside = isInsideAbove ? current >= bound : current <= bound;
+
+            if (isInside != isPreviousInside) {
+                float t = (bound - previous) / (current - previous);
+                out[m++] = previousX + t * (x - previousX);
+                out[m++] = previousY + t * (y - previousY);
+            }
+            if (isInside) {
+                out[m++] = x;
+                out[m++] = y;
             }
+
+            previousX = x;
+            previousY = y;
+            previous = current;
+            isPreviousInside = isInside;
         }
 
-        isDirty = false;
+        clipInput = out;
+        clipOutput = in;
+        return m;
     }
 
-    private void addPolygon(Polygon polygon, Projection projection)
+    /** Derive the projected-to-pixels transform of the current zoom from two projected points.
+     */
+    private void updateViewTransform(Projection projection)
     {
-        Coordinate[] projectedCoordinates = polygon.getExteriorRing().getCoordinates();
+        transformSource.set(0, 0);
+        projection.toMapPixelsTranslated(transformSource, transformTarget);
+        viewOffsetX = transformTarget.x;
+        viewOffsetY = transformTarget.y;
 
-        PointF[] verticesToReduce = new PointF[projectedCoordinates.length];
-        for (int i = 0; i < verticesToReduce.length; i++) {
-            workPoint.set((float) projectedCoordinates[i].x,(float) projectedCoordinates[i].y);
-            verticesToReduce[i] = projection.toMapPixelsTranslated(workPoint, null);
+        transformSource.set(TRANSFORM_REFERENCE_DISTANCE, 0);
+        projection.toMapPixelsTranslated(transformSource, transformTarget);
+        viewScale = (transformTarget.x - viewOffsetX) / TRANSFORM_REFERENCE_DISTANCE;
+    }
+
+    /** Zoom level of the scale, graphics of the level are drawn scaled up by less than 2 times.
+     */
+    private static int levelOf(float scale) {
+        return (int) Math.floor(Math.log(scale) / Math.log(2));
+    }
+
+    private LevelGraphics getLevelGraphics(int level)
+    {
+        LevelGraphics graphics = levelCache.get(level);
+        if (graphics != null)
+            return graphics;
+
+        graphics = buildLevelGraphics((float) Math.pow(2, level));
+        levelCache.put(level, graphics);
+        cachedBytes += graphics.bytes;
+
+        // evict least recently used levels
+        Iterator<Map.Entry<Integer, LevelGraphics>> eldest = levelCache.entrySet().iterator();
+        while (cachedBytes > MAX_CACHED_BYTES && eldest.hasNext())
+        {
+            LevelGraphics evicted = eldest.next().getValue();
+            if (evicted == graphics)
+                continue;
+            cachedBytes -= evicted.bytes;
+            eldest.remove();
         }
 
-        PointF[] vertices = simplifier.simplify(verticesToReduce, SIMPLIFY_TOLERANCE, true);
+        return graphics;
+    }
 
-        path.moveTo(vertices[0].x, vertices[0].y);
-        for (int i = 0; i < vertices.length; i++) {
-            path.lineTo(vertices[i].x, vertices[i].y);
+    private void clearLevelCache() {
+        levelCache.clear();
+        cachedBytes = 0;
+    }
+
+    private LevelGraphics buildLevelGraphics(float levelScale)
+    {
+        Geometry lod = lodFor(levelScale);
+        float[][] rings = new float[lod instanceof Polygon || lod instanceof MultiPolygon? countRings(lod): 0][];
+
+        int r = 0;
+        for (int i = 0, n = rings.length > 0? lod.getNumGeometries(): 0; i < n; i++)
+        {
+            Polygon polygon = (Polygon) lod.getGeometryN(i);
+            rings[r++] = simplifiedRing(polygon.getExteriorRing(), levelScale);
+            for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+                rings[r++] = simplifiedRing(polygon.getInteriorRingN(j), levelScale);
+            }
         }
+
+        // rings, their bounds and the graphics
+        allocations += rings.length + 3;
+        return new LevelGraphics(rings);
     }
 
-    @Override
-    protected void draw(Canvas canvas, MapView mapView, boolean shadow) {
-        if (shadow || null == roiProjected || isHidden)
-            return;
+    private float[] simplifiedRing(LineString ring, float levelScale)
+    {
+        CoordinateSequence sequence = ring.getCoordinateSequence();
 
-        canvas.save();
+        int n = 2 * sequence.size();
+        ringBuffer = grow(ringBuffer, n);
+        for (int i = 0; i < n; i += 2) {
+            ringBuffer[i] = (float) (sequence.getX(i / 2) * levelScale);
+            ringBuffer[i + 1] = (float) (sequence.getY(i / 2) * levelScale);
+        }
 
-        Projection projection = mapView.getProjection();
-        int worldWidth = projection.getWorldWidth();
+        n = simplifyRing(n, (float) SIMPLIFY_TOLERANCE);
+        return Arrays.copyOf(ringBuffer, n);
+    }
+
+    /** Douglas-Peucker simplification of the ring in ringBuffer, kept vertices are compacted in place.
+     * @param n Number of the ring coordinates.
+     * @return Number of the simplified ring coordinates.
+     */
+    private int simplifyRing(int n, float tolerance)
+    {
+        int count = n / 2;
+        if (count <= 3)
+            return n;
+
+        keepBuffer = grow(keepBuffer, count);
+        Arrays.fill(keepBuffer, 0, count, false);
+        keepBuffer[0] = keepBuffer[count - 1] = true;
 
-        if (isDirty)
-            updateGraphics(projection);
+        float toleranceSquared = tolerance * tolerance;
+        int top = 0;
+        rangeStack = grow(rangeStack, 2 * count);
+        rangeStack[top++] = 0;
+        rangeStack[top++] = count - 1;
 
-        projection.getVisibleWorlds(visibleWorldInstances);
+        while (top > 0)
+        {
+            int last = rangeStack[--top];
+            int first = rangeStack[--top];
+
+            float maxDistance = 0;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                float distance = segmentDistanceSquared(2 * i, 2 * first, 2 * last);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
 
-        if (visibleWorldInstances[0] == visibleWorldInstances[1]) {
-            // single world instance visible
-            drawInstance(canvas, worldWidth * visibleWorldInstances[0]);
+            if (maxDistance > toleranceSquared)
+            {
+                keepBuffer[farthest] = true;
+                rangeStack[top++] = first;
+                rangeStack[top++] = farthest;
+                rangeStack[top++] = farthest;
+                rangeStack[top++] = last;
+            }
         }
-        else {
-            // multiple world instances visible
-            drawInstance(canvas, worldWidth * visibleWorldInstances[0]);
-            for (int iWorld = visibleWorldInstances[0] + 1; iWorld <= visibleWorldInstances[1]; iWorld++) {
-                drawInstance(canvas, worldWidth);
+
+        int m = 0;
+        for (int i = 0; i < count; i++) {
+            if (keepBuffer[i]) {
+                ringBuffer[m++] = ringBuffer[2 * i];
+                ringBuffer[m++] = ringBuffer[2 * i + 1];
             }
         }
+        return m;
+    }
 
-        canvas.restore();
+    /** Squared distance from the point to the segment, all given by their ringBuffer offsets.
+     */
+    private float segmentDistanceSquared(int point, int start, int end)
+    {
+        float x = ringBuffer[start], y = ringBuffer[start + 1];
+        float dx = ringBuffer[end] - x, dy = ringBuffer[end + 1] - y;
+
+        if (dx != 0 || dy != 0) {
+            float t = ((ringBuffer[point] - x) * dx + (ringBuffer[point + 1] - y) * dy) / (dx * dx + dy * dy);
+            if (t > 1) {
+                x = ringBuffer[end];
+                y = ringBuffer[end + 1];
+            }
+            else if (t > 0) {
+                x += dx * t;
+                y += dy * t;
+            }
+        }
+
+        dx = ringBuffer[point] - x;
+        dy = ringBuffer[point + 1] - y;
+        return dx * dx + dy * dy;
+    }
+
+    // *** Growable scratch buffers, contents are not kept
+
+    private float[] grow(float[] buffer, int size) {
+        if (buffer.length >= size)
+            return buffer;
+        allocations++;
+        return new float[Math.max(size, 2 * buffer.length)];
+    }
+
+    private int[] grow(int[] buffer, int size) {
+        if (buffer.length >= size)
+            return buffer;
+        allocations++;
+        return new int[Math.max(size, 2 * buffer.length)];
+    }
+
+    private boolean[] grow(boolean[] buffer, int size) {
+        if (buffer.length >= size)
+            return buffer;
+        allocations++;
+        return new boolean[Math.max(size, 2 * buffer.length)];
     }
 
-    private void drawInstance(Canvas canvas, float translation) {
-        canvas.translate(translation, 0);
-        canvas.drawPath(path, paint);
+    @Override
+    protected void draw(Canvas canvas, MapView mapView, boolean shadow) {
+        if (shadow || null == roiGeographic || null == geometryTransform || isHidden)
+            return;
+
+        Projection projection = mapView.getProjection();
+
+        canvas.getClipBounds(clipBounds);
+        updateGraphics(projection, clipBounds, mapView);
+
+        // the previous buffer is drawn until the requested one is ready
+        if (null == frontBuffer)
+            return;
+
+        // the path holds the visible world instances built for the zoom level, scale it to the current fractional zoom
+        canvas.save();
+        canvas.translate(viewOffsetX, viewOffsetY);
+        float pathScale = viewScale / (float) Math.pow(2, frontBuffer.level);
+        canvas.scale(pathScale, pathScale);
+        if (! canvas.quickReject(frontBuffer.path, Canvas.EdgeType.AA))
+            canvas.drawPath(frontBuffer.path, paint);
+        canvas.restore();
     }
 
     //
@@ -213,7 +1083,7 @@ public class RegionOfInterestOverlay extends Overlay implements MapListener
 
     @Override
     public void onZoom(ZoomEvent event) {
-        isDirty = true;
+        // the path level is checked on every draw
     }
 
     @Override
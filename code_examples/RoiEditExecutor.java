@@ -0,0 +1,210 @@
+package com.sample.mapbox;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Single-flight executor of ROI edits.<br/><br/>
+ *
+ * Edits are applied one by one on the worker thread to the worker's own copy of the selected countries.
+ * Edits queued while the worker is busy are taken in one batch followed by one union computation, the
+ * union is cancelled and restarted with the batch extended if more edits arrive meanwhile. Results are
+ * published on the main thread as immutable snapshots, snapshots superseded by newer edits are dropped.
+ */
+class RoiEditExecutor
+{
+    public static final String TAG = RoiEditExecutor.class.getSimpleName();
+
+    /** Country selection change, applied on the worker thread.
+     */
+    interface Edit {
+        void apply(Set<String> countries) throws Exception;
+    }
+
+    /** Results listener, called on the main thread.
+     */
+    interface Listener {
+        /** @param countries Unmodifiable snapshot, copy it to change.
+         */
+        void onRoiSnapshot(Geometry roi, Set<String> countries);
+        void onEditsCompleted();
+    }
+
+    /** Replaces the worker state with the ROI set by the editor directly.
+     */
+    private static class Reset
+    {
+        final Geometry geometry;
+        final Set<String> countries;
+
+        Reset(Geometry geometry, Set<String> countries) {
+            this.geometry = geometry;
+            this.countries = countries;
+        }
+    }
+
+    /** Daemon thread, a worker left behind by an editor never shut down doesn't keep the process alive.
+     */
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Queue<Object> pending = new ConcurrentLinkedQueue<>();
+
+    /** Incremented on every submission, a union started at older generation is superseded.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private final AtomicBoolean isDraining = new AtomicBoolean();
+
+    private final CountryUnionCache unionCache;
+
+    private final Listener listener;
+
+    // *** worker thread state
+
+    private Set<String> countries = new LinkedHashSet<>();
+
+    private Geometry geometry;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    RoiEditExecutor(CountryUnionCache unionCache, Listener listener) {
+        this.unionCache = unionCache;
+        this.listener = listener;
+    }
+
+    void submit(Edit edit) {
+        enqueue(edit);
+    }
+
+    /** Set ROI changed by the editor directly, e.g. restored or outlined.
+     */
+    void reset(Geometry geometry, Set<String> countries) {
+        enqueue(new Reset(geometry, null == countries? Collections.<String>emptySet(): new LinkedHashSet<>(countries)));
+    }
+
+    /** Stop the worker, pending edits are dropped and no more edits are accepted.
+     */
+    void shutdown() {
+        pending.clear();
+        generation.incrementAndGet();
+        worker.shutdownNow();
+    }
+
+    private void enqueue(Object item)
+    {
+        pending.add(item);
+        generation.incrementAndGet();
+        if (isDraining.compareAndSet(false, true)) {
+            worker.execute(drainTask);
+        }
+    }
+
+    private void drain()
+    {
+        do {
+            process();
+            isDraining.set(false);
+        }
+        while (! pending.isEmpty() && isDraining.compareAndSet(false, true));
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (! isDraining.get() && pending.isEmpty())
+                    listener.onEditsCompleted();
+            }
+        });
+    }
+
+    private void process()
+    {
+        boolean isChanged = false;
+        while (true)
+        {
+            // take the batch
+            Object item;
+            while ((item = pending.poll()) != null)
+            {
+                if (item instanceof Reset) {
+                    Reset reset = (Reset) item;
+                    geometry = reset.geometry;
+                    countries = new LinkedHashSet<>(reset.countries);
+                    isChanged = false;
+                    continue;
+                }
+
+                try {
+                    ((Edit) item).apply(countries);
+                    isChanged = true;
+                }
+                catch (Exception e) {
+                    Log.d(TAG, "ROI edit failed!", e);
+                }
+            }
+
+            if (! isChanged)
+                return;
+
+            // one union for the batch
+            final int unionGeneration = generation.get();
+            try
+            {
+                geometry = unionCache.union(countries, new CountryUnionCache.Cancellation() {
+                    @Override
+                    public boolean isCancelled() {
+                        return generation.get() != unionGeneration;
+                    }
+                });
+            }
+            catch (CancellationException x) {
+                continue; // newer edits arrived, extend the batch
+            }
+            catch (Exception e) {
+                Log.d(TAG, "Failed to build ROI union!", e);
+                return;
+            }
+
+            publish(unionGeneration, geometry, Collections.unmodifiableSet(new LinkedHashSet<>(countries)));
+            return;
+        }
+    }
+
+    private void publish(final int snapshotGeneration, final Geometry roi, final Set<String> snapshotCountries)
+    {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (snapshotGeneration == generation.get())
+                    listener.onRoiSnapshot(roi, snapshotCountries);
+            }
+        });
+    }
+}
@@ -5,15 +5,13 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.PointF;
 import android.support.v4.view.GestureDetectorCompat;
 import android.util.AttributeSet;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Created by Crysberry on 08.08.2015.
@@ -24,6 +22,14 @@ public class RoiEditSurface extends View implements GestureDetector.OnGestureLis
         void onSingleTap(MotionEvent event);
     }
 
+    /** Minimal distance between the trace points, in density independent pixels.
+     */
+    private static final float TRACE_TOLERANCE_DP = 4;
+
+    /** Trace points limit, the trace is thinned with doubled tolerance when it is reached.
+     */
+    private static final int MAX_TRACE_POINTS = 512;
+
     private GestureDetectorCompat detector;
 
 
@@ -37,9 +43,15 @@ public class RoiEditSurface extends View implements GestureDetector.OnGestureLis
      */
     private final Paint tracePaint = new Paint();
 
-    /**
+    /** Decimated trace x, y pairs.
      */
-    List<PointF> trace = new ArrayList<>();
+    private float[] trace = new float[2 * 64];
+
+    private int traceLength;
+
+    /** Current minimal distance between the trace points, in pixels.
+     */
+    private float traceTolerance;
 
     /**
      */
@@ -78,19 +90,26 @@ public class RoiEditSurface extends View implements GestureDetector.OnGestureLis
             case MotionEvent.ACTION_DOWN:
                 performClick();
 
-                trace.clear();
-                trace.add(new PointF(eX, eY));
+                traceLength = 0;
+                traceTolerance = TRACE_TOLERANCE_DP * getResources().getDisplayMetrics().density;
+                addTracePoint(eX, eY);
 
                 tracePath.rewind();
                 tracePath.moveTo(eX, eY);
                 break;
 
             case MotionEvent.ACTION_MOVE:
-                trace.add(new PointF(eX, eY));
-                tracePath.lineTo(event.getX(), event.getY());
+                // samples batched since the last event first
+                for (int h = 0, n = event.getHistorySize(); h < n; h++) {
+                    addTraceSample(event.getHistoricalX(h), event.getHistoricalY(h));
+                }
+                addTraceSample(eX, eY);
                 break;
 
             case MotionEvent.ACTION_UP:
+                addTraceSample(eX, eY);
+                traceLength = simplifyTrace(traceTolerance / 2);
+                rebuildTracePath();
                 tracePath.close();
                 break;
         }
@@ -104,8 +123,132 @@ public class RoiEditSurface extends View implements GestureDetector.OnGestureLis
         canvas.drawPath(tracePath, tracePaint);
     }
 
-    public List<PointF> getTrace() {
-        return trace;
+    /** Copy of the decimated trace.
+     * @return x, y pairs of the trace points in the view pixels.
+     */
+    public float[] getTrace() {
+        return Arrays.copyOf(trace, traceLength);
+    }
+
+    /** Radial distance decimation: keep the sample if it's far enough from the last kept point.
+     */
+    private void addTraceSample(float x, float y)
+    {
+        if (traceLength == 0) {
+            addTracePoint(x, y);
+            return;
+        }
+
+        float dx = x - trace[traceLength - 2], dy = y - trace[traceLength - 1];
+        if (dx * dx + dy * dy < traceTolerance * traceTolerance)
+            return;
+
+        if (traceLength == 2 * MAX_TRACE_POINTS) {
+            // samples may already be farther apart than the doubled tolerance, double until a point goes
+            do {
+                traceTolerance *= 2;
+                thinTrace();
+            }
+            while (traceLength == 2 * MAX_TRACE_POINTS);
+            rebuildTracePath();
+
+            dx = x - trace[traceLength - 2];
+            dy = y - trace[traceLength - 1];
+            if (dx * dx + dy * dy < traceTolerance * traceTolerance)
+                return;
+        }
+
+        addTracePoint(x, y);
+        tracePath.lineTo(x, y);
+    }
+
+    private void addTracePoint(float x, float y)
+    {
+        if (traceLength == trace.length) {
+            trace = Arrays.copyOf(trace, Math.min(2 * trace.length, 2 * MAX_TRACE_POINTS));
+        }
+        trace[traceLength++] = x;
+        trace[traceLength++] = y;
+    }
+
+    /** Repeat the radial distance decimation of the kept points with the current tolerance.
+     */
+    private void thinTrace()
+    {
+        float toleranceSquared = traceTolerance * traceTolerance;
+        int n = 2;
+        for (int i = 2; i < traceLength; i += 2) {
+            float dx = trace[i] - trace[n - 2], dy = trace[i + 1] - trace[n - 1];
+            if (dx * dx + dy * dy >= toleranceSquared) {
+                trace[n++] = trace[i];
+                trace[n++] = trace[i + 1];
+            }
+        }
+        traceLength = n;
+    }
+
+    /** Redraw the trace path through the kept points.
+     */
+    private void rebuildTracePath()
+    {
+        tracePath.rewind();
+        if (traceLength == 0)
+            return;
+        tracePath.moveTo(trace[0], trace[1]);
+        for (int i = 2; i < traceLength; i += 2) {
+            tracePath.lineTo(trace[i], trace[i + 1]);
+        }
+    }
+
+    /** Douglas-Peucker simplification of the finished trace, drops points on nearly straight runs.
+     * @return Number of the kept trace coordinates.
+     */
+    private int simplifyTrace(float tolerance)
+    {
+        int count = traceLength / 2;
+        if (count <= 2)
+            return traceLength;
+
+        boolean[] keep = new boolean[count];
+        keep[0] = keep[count - 1] = true;
+        simplifyTrace(keep, 0, count - 1, tolerance * tolerance);
+
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                trace[n++] = trace[2 * i];
+                trace[n++] = trace[2 * i + 1];
+            }
+        }
+        return n;
+    }
+
+    private void simplifyTrace(boolean[] keep, int first, int last, float toleranceSquared)
+    {
+        float x = trace[2 * first], y = trace[2 * first + 1];
+        float dx = trace[2 * last] - x, dy = trace[2 * last + 1] - y;
+        float lengthSquared = dx * dx + dy * dy;
+
+        float maxDistance = 0;
+        int farthest = -1;
+        for (int i = first + 1; i < last; i++)
+        {
+            float px = trace[2 * i] - x, py = trace[2 * i + 1] - y;
+            // squared distance to the chord line, or to the first point for a closed chord
+            float distance = lengthSquared > 0
+                    ? (px * dy - py * dx) * (px * dy - py * dx) / lengthSquared
+                    : px * px + py * py;
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                farthest = i;
+            }
+        }
+
+        if (maxDistance > toleranceSquared) {
+            keep[farthest] = true;
+            simplifyTrace(keep, first, farthest, toleranceSquared);
+            simplifyTrace(keep, farthest, last, toleranceSquared);
+        }
     }
 
     public void reset() {
@@ -0,0 +1,149 @@
+package com.sample.dal;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Binary storage format of the ROI geometry, replaces WKT text kept in SharedPreferences.<br/><br/>
+ *
+ * Layout (big endian):
+ * <pre>
+ *   int     magic "ROIB"
+ *   short   format version
+ *   byte    geometry type, see TYPE_* constants
+ *   int     polygon count
+ *   double  minX, maxX, minY, maxY of the whole geometry
+ *   polygon count x {
+ *       double  minX, maxX, minY, maxY of the polygon
+ *       int     ring count, exterior ring goes first
+ *       ring count x {
+ *           int     point count
+ *           point count x { double x, double y }
+ *       }
+ *   }
+ * </pre>
+ */
+public final class RoiGeometryCodec
+{
+    static final int MAGIC = 0x524F4942;
+
+    static final short VERSION = 1;
+
+    static final byte TYPE_EMPTY = 0;
+    static final byte TYPE_POLYGON = 1;
+    static final byte TYPE_MULTI_POLYGON = 2;
+
+    /** Size of the file header: magic, version, type, polygon count and envelope.
+     */
+    static final int HEADER_SIZE = 4 + 2 + 1 + 4 + 4 * 8;
+
+    private RoiGeometryCodec() {
+    }
+
+    /** Estimated size of the geometry record in bytes.
+     */
+    public static long estimateSize(Geometry geometry) {
+        return null == geometry? HEADER_SIZE:
+                HEADER_SIZE + geometry.getNumGeometries() * (4 * 8 + 4) + geometry.getNumPoints() * (16 + 4);
+    }
+
+    /** Write polygonal geometry to the stream. Non-polygonal components are skipped.
+     * The stream is flushed, not closed.
+     */
+    public static void write(Geometry geometry, OutputStream stream) throws IOException
+    {
+        List<Polygon> polygons = polygonsOf(geometry);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeByte(polygons.isEmpty()? TYPE_EMPTY: (geometry instanceof Polygon? TYPE_POLYGON: TYPE_MULTI_POLYGON));
+        out.writeInt(polygons.size());
+        writeEnvelope(out, null == geometry? new Envelope(): geometry.getEnvelopeInternal());
+
+        for (Polygon polygon : polygons)
+        {
+            writeEnvelope(out, polygon.getEnvelopeInternal());
+            out.writeInt(1 + polygon.getNumInteriorRing());
+            writeRing(out, polygon.getExteriorRing().getCoordinateSequence());
+            for (int i = 0, n = polygon.getNumInteriorRing(); i < n; i++) {
+                writeRing(out, polygon.getInteriorRingN(i).getCoordinateSequence());
+            }
+        }
+
+        out.flush();
+    }
+
+    /** Decode polygon record from the buffer positioned at its ring count.
+     */
+    static Polygon readPolygon(ByteBuffer buffer, GeometryFactory factory)
+    {
+        int ringCount = buffer.getInt();
+        LinearRing shell = factory.createLinearRing(readRing(buffer, factory));
+        LinearRing[] holes = new LinearRing[ringCount - 1];
+        for (int i = 0; i < holes.length; i++) {
+            holes[i] = factory.createLinearRing(readRing(buffer, factory));
+        }
+        return factory.createPolygon(shell, holes);
+    }
+
+    private static CoordinateSequence readRing(ByteBuffer buffer, GeometryFactory factory)
+    {
+        int pointCount = buffer.getInt();
+        CoordinateSequence sequence = factory.getCoordinateSequenceFactory().create(pointCount, 2);
+        for (int i = 0; i < pointCount; i++) {
+            sequence.setOrdinate(i, CoordinateSequence.X, buffer.getDouble());
+            sequence.setOrdinate(i, CoordinateSequence.Y, buffer.getDouble());
+        }
+        return sequence;
+    }
+
+    private static void writeRing(DataOutputStream out, CoordinateSequence sequence) throws IOException
+    {
+        int pointCount = sequence.size();
+        out.writeInt(pointCount);
+        for (int i = 0; i < pointCount; i++) {
+            out.writeDouble(sequence.getOrdinate(i, CoordinateSequence.X));
+            out.writeDouble(sequence.getOrdinate(i, CoordinateSequence.Y));
+        }
+    }
+
+    private static void writeEnvelope(DataOutputStream out, Envelope envelope) throws IOException {
+        out.writeDouble(envelope.getMinX());
+        out.writeDouble(envelope.getMaxX());
+        out.writeDouble(envelope.getMinY());
+        out.writeDouble(envelope.getMaxY());
+    }
+
+    private static List<Polygon> polygonsOf(Geometry geometry)
+    {
+        List<Polygon> polygons = new ArrayList<>();
+        if (geometry instanceof Polygon) {
+            if (! geometry.isEmpty())
+                polygons.add((Polygon) geometry);
+        }
+        else if (geometry != null) {
+            for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                Geometry part = geometry.getGeometryN(i);
+                if (part instanceof Polygon && ! part.isEmpty())
+                    polygons.add((Polygon) part);
+                else if (part instanceof MultiPolygon)
+                    polygons.addAll(polygonsOf(part));
+            }
+        }
+        return polygons;
+    }
+}
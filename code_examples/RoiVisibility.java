@@ -0,0 +1,202 @@
+package com.sample.dal;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateFilter;
+import com.vividsolutions.jts.geom.Geometry;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Satellite visibility test of the ROI vertices.<br/><br/>
+ *
+ * ROI is visible from the satellite if the satellite elevation is non-negative at all ROI vertices.
+ * Vertices are kept as primitive latitude, longitude pairs ordered coarse to fine: convex hull vertices
+ * first (the most likely to fail), then every {@link #COARSE_STRIDE}-th vertex, every {@link #FINE_STRIDE}-th
+ * vertex and the rest. The scan stops at the first negative elevation. Results are cached by the satellite
+ * id for the ROI version the instance is built for, the instance is rebuilt when the version changes.
+ */
+class RoiVisibility
+{
+    private static final int COARSE_STRIDE = 64;
+
+    private static final int FINE_STRIDE = 8;
+
+    /** Satellites tested by a single fork-join task.
+     */
+    private static final int BATCH_SLICE = 32;
+
+    /** Private locks by satellite id, the elevation computation of a satellite is serialized without
+     * holding the monitor of the satellite object other code may lock.
+     */
+    private static final ConcurrentHashMap<Object, Object> satelliteLocks = new ConcurrentHashMap<>();
+
+    /** Vertex latitude, longitude pairs in the test order.
+     */
+    private final double[] latLon;
+
+    /** Version of the ROI geometry the vertices are taken from.
+     */
+    final int roiVersion;
+
+    /** Visibility by satellite id.
+     */
+    private final ConcurrentHashMap<Object, Boolean> results = new ConcurrentHashMap<>();
+
+    RoiVisibility(Geometry roiGeometry, int roiVersion)
+    {
+        this.roiVersion = roiVersion;
+
+        double[] hull = latLonOf(roiGeometry.convexHull());
+        double[] vertices = latLonOf(roiGeometry);
+
+        latLon = new double[hull.length + vertices.length];
+        System.arraycopy(hull, 0, latLon, 0, hull.length);
+
+        int n = hull.length;
+        int vertexCount = vertices.length / 2;
+        for (int i = 0; i < vertexCount; i += COARSE_STRIDE, n += 2) {
+            latLon[n] = vertices[2 * i];
+            latLon[n + 1] = vertices[2 * i + 1];
+        }
+        for (int i = 0; i < vertexCount; i += FINE_STRIDE) {
+            if (i % COARSE_STRIDE != 0) {
+                latLon[n++] = vertices[2 * i];
+                latLon[n++] = vertices[2 * i + 1];
+            }
+        }
+        for (int i = 0; i < vertexCount; i++) {
+            if (i % FINE_STRIDE != 0) {
+                latLon[n++] = vertices[2 * i];
+                latLon[n++] = vertices[2 * i + 1];
+            }
+        }
+    }
+
+    boolean isVisibleFrom(Satellite satellite)
+    {
+        Object id = satellite.getId();
+        Boolean cached = results.get(id);
+        if (cached != null)
+            return cached;
+
+        synchronized (lockOf(id)) {
+            // tested meanwhile by another thread
+            cached = results.get(id);
+            if (cached != null)
+                return cached;
+
+            boolean isVisible = isVisibleAt(satellite, latLon);
+            results.put(id, isVisible);
+            return isVisible;
+        }
+    }
+
+    /** Test the satellite list splitting it across the pool threads.<br/><br/>
+     *
+     * Every slice reads the cache and writes its own range of the result arrays only, new results are
+     * merged into the cache when all slices are done. A satellite is tested by a single thread holding
+     * the lock of its id, distinct satellites are tested concurrently.
+     * @return Bits set at indices of the visible satellites.
+     */
+    BitSet visibleSubset(List<Satellite> satellites, ForkJoinPool forkJoinPool)
+    {
+        Satellite[] items = satellites.toArray(new Satellite[satellites.size()]);
+        boolean[] isVisible = new boolean[items.length];
+        boolean[] isTested = new boolean[items.length];
+
+        forkJoinPool.invoke(new BatchTask(items, isVisible, isTested, 0, items.length));
+
+        BitSet visible = new BitSet(items.length);
+        for (int i = 0; i < isVisible.length; i++) {
+            if (isVisible[i])
+                visible.set(i);
+            if (isTested[i])
+                results.put(items[i].getId(), isVisible[i]);
+        }
+        return visible;
+    }
+
+    private class BatchTask extends RecursiveAction
+    {
+        private final Satellite[] satellites;
+        private final boolean[] isVisible;
+        /** Whether the result is tested rather than cached.
+         */
+        private final boolean[] isTested;
+        private final int from, to;
+
+        BatchTask(Satellite[] satellites, boolean[] isVisible, boolean[] isTested, int from, int to) {
+            this.satellites = satellites;
+            this.isVisible = isVisible;
+            this.isTested = isTested;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= BATCH_SLICE) {
+                for (int i = from; i < to; i++)
+                {
+                    Boolean cached = results.get(satellites[i].getId());
+                    if (cached != null) {
+                        isVisible[i] = cached;
+                    }
+                    else {
+                        isVisible[i] = isVisibleAt(satellites[i], latLon);
+                        isTested[i] = true;
+                    }
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new BatchTask(satellites, isVisible, isTested, from, middle),
+                    new BatchTask(satellites, isVisible, isTested, middle, to));
+        }
+    }
+
+    private static Object lockOf(Object id)
+    {
+        Object lock = satelliteLocks.get(id);
+        if (null == lock) {
+            Object created = new Object();
+            lock = satelliteLocks.putIfAbsent(id, created);
+            if (null == lock)
+                lock = created;
+        }
+        return lock;
+    }
+
+    /** The elevation computation isn't known to be thread safe, calls on the same satellite are serialized.
+     */
+    static boolean isVisibleAt(Satellite satellite, double[] latLon)
+    {
+        synchronized (lockOf(satellite.getId())) {
+            for (int i = 0; i < latLon.length; i += 2) {
+                if (satellite.getElevationAtPosition(latLon[i], latLon[i + 1]) < 0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static double[] latLonOf(Geometry geometry)
+    {
+        final double[] latLon = new double[2 * geometry.getNumPoints()];
+        geometry.apply(new CoordinateFilter() {
+            int n = 0;
+
+            @Override
+            public void filter(Coordinate c) {
+                latLon[n++] = c.y;
+                latLon[n++] = c.x;
+            }
+        });
+        return latLon;
+    }
+}
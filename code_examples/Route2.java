@@ -3,14 +3,24 @@ package com.sample.mapbox;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.text.TextUtils;
+import android.util.Log;
 
 import com.google.android.gms.maps.model.LatLng;
 import com.letsplaymobile.satbeams.geometry.GeodeticArc;
 import com.letsplaymobile.satbeams.geometry.GreatCircleArc;
 import com.letsplaymobile.satbeams.geometry.RhumbArc;
-
-import java.util.LinkedList;
+import com.sample.dal.PersistenceWriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
 
 /**
  * Created by Crysberry on 4/16/15.
@@ -32,24 +42,59 @@ public class Route2
     private final static String STORAGE_KEY_ROUTE_NODES = "STORAGE_KEY_ROUTE_NODES";
     private final static String STORAGE_KEY_ROUTE_SEGMENTS = "STORAGE_KEY_ROUTE_SEGMENTS";
 
+    /** Route file name is the storage name with the suffix, see {@link Route2Codec}.
+     */
+    final static String ROUTE_FILE_SUFFIX = ".route";
+
+    private final static int INITIAL_CAPACITY = 16;
+
+    /** Segment type codes in the segment types array.
+     */
+    final static byte SEGMENT_GREAT_CIRCLE = 0;
+    final static byte SEGMENT_RHUMB = 1;
+
+    private final String storageName;
+
     private SharedPreferences store;
 
-    /** Aux list to support route nodes list adapter. Have to keep it in sync with the segments list.
-     * Actually may be derived from the segments list.
-     *
+    private final File routeFile;
+
+    /** Route nodes coordinates, the first nodesCount entries are used.
      */
-    private LinkedList<LatLng> nodes = new LinkedList<>();
+    private double[] latitudes = new double[INITIAL_CAPACITY];
+    private double[] longitudes = new double[INITIAL_CAPACITY];
+
+    private int nodesCount;
 
-    /** Route geometry data
+    /** Type of the segment i between nodes i and i + 1.
      */
-    private LinkedList<GeodeticArc> segments = new LinkedList<>();
+    private byte[] segmentTypes = new byte[INITIAL_CAPACITY];
+
+    /** Segment objects created on demand or added as is, null entries are derived from nodes and types.
+     */
+    private GeodeticArc[] segments = new GeodeticArc[INITIAL_CAPACITY];
+
+    /** Cumulative length from the first node to each node, per distance unit ordinal, created on demand.
+     */
+    private final double[][] cumulativeLengths = new double[GeodeticArc.DISTANCE_UNIT.values().length][];
+
+    /** Number of valid leading cumulative lengths per distance unit ordinal, edits truncate it.
+     */
+    private final int[] validLengths = new int[GeodeticArc.DISTANCE_UNIT.values().length];
+
+    /** Read only views of the nodes and segments.
+     */
+    private final List<LatLng> nodesView = new NodesView();
+    private final List<GeodeticArc> segmentsView = new SegmentsView();
 
     /**
      *
      * @param context
      */
     public Route2(Context context) {
+        this.storageName = STORAGE_NAME;
         this.store = context.getSharedPreferences(STORAGE_NAME, Context.MODE_PRIVATE);
+        this.routeFile = new File(context.getFilesDir(), STORAGE_NAME + ROUTE_FILE_SUFFIX);
     }
 
     /**
@@ -58,150 +103,428 @@ public class Route2
      * @param storageFileName
      */
     public Route2(Context context, String storageFileName) {
+        this.storageName = storageFileName;
         this.store = context.getSharedPreferences(storageFileName, Context.MODE_PRIVATE);
+        this.routeFile = new File(context.getFilesDir(), storageFileName + ROUTE_FILE_SUFFIX);
+    }
+
+    /** Route kept in the file only, it has no legacy preferences to migrate or remove.
+     * @param routeFile Route file, see {@link Route2Codec}.
+     */
+    Route2(File routeFile) {
+        this.storageName = routeFile.getName();
+        this.store = null;
+        this.routeFile = routeFile;
     }
 
     /** Add node to the route and create default geometry for the segment. No segment created if the route is empty.
      * @param point Route node or end of the segment added.
      */
-    public void add(LatLng point)
-    {
-        if (nodes.size() == 0) {
-            nodes.add(point);
-            return;
-        }
+    public void add(LatLng point) {
+        addNode(point.latitude, point.longitude, SEGMENT_GREAT_CIRCLE, null);
+    }
 
-        segments.add( new GreatCircleArc( nodes.getLast(), point));
-        nodes.add(point);
+    /** Add node given by coordinates, the segment is created when requested.
+     * @param geometry Type of the inbound segment geometry, ignored for the first node.
+     */
+    public void add(double latitude, double longitude, GEOMETRY geometry) {
+        addNode(latitude, longitude, geometry == GEOMETRY.RHUMB? SEGMENT_RHUMB: SEGMENT_GREAT_CIRCLE, null);
     }
 
     /** Add node to the route and create geometry for the segment of the given type. No segment created if the route is empty.
      * @param point Route node or end of the segment added.
      * @param geometry Type of the segment geometry
      */
-    public void add(LatLng point, GEOMETRY geometry)
+    public void add(LatLng point, GEOMETRY geometry) {
+        add(point.latitude, point.longitude, geometry);
+    }
+
+    /** Add node and inbound segment to the route. No segment created if the route is empty.
+     * @param point Route node or end of the segment added.
+     * @param segment Type of the segment geometry
+     */
+    public void add(LatLng point, GeodeticArc segment) {
+        addNode(point.latitude, point.longitude, segment instanceof RhumbArc? SEGMENT_RHUMB: SEGMENT_GREAT_CIRCLE, segment);
+    }
+
+    private void addNode(double latitude, double longitude, byte segmentType, GeodeticArc segment)
     {
-        if (nodes.size() == 0) {
-            nodes.add(point);
-            return;
+        ensureCapacity(nodesCount + 1);
+
+        latitudes[nodesCount] = latitude;
+        longitudes[nodesCount] = longitude;
+        if (nodesCount > 0) {
+            segmentTypes[nodesCount - 1] = segmentType;
+            segments[nodesCount - 1] = segment;
         }
+        nodesCount++;
+    }
 
-        switch (geometry)
-        {
-            default:
-            case GREAT_CIRCLE:
-                segments.add( new GreatCircleArc( nodes.getLast(), point));
-                break;
-            case RHUMB:
-                segments.add( new RhumbArc(nodes.getLast(), point));
-                break;
+    /** Remove the node. Its inbound segment is removed, the outbound one joins the previous node.
+     */
+    public void remove(int node)
+    {
+        checkNode(node);
+
+        int tail = nodesCount - node - 1;
+        System.arraycopy(latitudes, node + 1, latitudes, node, tail);
+        System.arraycopy(longitudes, node + 1, longitudes, node, tail);
+        if (node > 0) {
+            // segment node - 1 is replaced by the outbound one keeping its type
+            System.arraycopy(segmentTypes, node, segmentTypes, node - 1, tail);
+            System.arraycopy(segments, node, segments, node - 1, tail);
+            segments[node - 1] = null;
+        }
+        else if (nodesCount > 1) {
+            System.arraycopy(segmentTypes, 1, segmentTypes, 0, nodesCount - 2);
+            System.arraycopy(segments, 1, segments, 0, nodesCount - 2);
+        }
+        nodesCount--;
+        if (nodesCount > 0) {
+            segments[nodesCount - 1] = null;
         }
 
-        nodes.add(point);
+        invalidateLengths(node);
     }
 
-    /** Add node and inbound segment to the route. No segment created if the route is empty.
-     * @param point Route node or end of the segment added.
-     * @param segment Type of the segment geometry
+    /** Move the node, both adjacent segments are recreated.
      */
-    public void add(LatLng point, GeodeticArc segment)
+    public void set(int node, double latitude, double longitude)
     {
-        if (nodes.size() == 0) {
-            nodes.add(point);
+        checkNode(node);
+        latitudes[node] = latitude;
+        longitudes[node] = longitude;
+        if (node > 0)
+            segments[node - 1] = null;
+        if (node < nodesCount - 1)
+            segments[node] = null;
+
+        invalidateLengths(node);
+    }
+
+    public void setSegmentGeometry(int segment, GEOMETRY geometry)
+    {
+        checkNode(segment + 1);
+        segmentTypes[segment] = geometry == GEOMETRY.RHUMB? SEGMENT_RHUMB: SEGMENT_GREAT_CIRCLE;
+        segments[segment] = null;
+
+        invalidateLengths(segment + 1);
+    }
+
+    /** Cumulative lengths of the node and the following ones are recomputed on the next query.
+     */
+    private void invalidateLengths(int node) {
+        for (int i = 0; i < validLengths.length; i++) {
+            validLengths[i] = Math.min(validLengths[i], node);
+        }
+    }
+
+    /** Make room for the nodes count, e.g. before importing a long route.
+     */
+    public void ensureCapacity(int capacity)
+    {
+        if (capacity <= latitudes.length)
             return;
+
+        int newCapacity = Math.max(capacity, 2 * latitudes.length);
+        latitudes = Arrays.copyOf(latitudes, newCapacity);
+        longitudes = Arrays.copyOf(longitudes, newCapacity);
+        segmentTypes = Arrays.copyOf(segmentTypes, newCapacity);
+        segments = Arrays.copyOf(segments, newCapacity);
+    }
+
+    private void clear()
+    {
+        Arrays.fill(segments, 0, nodesCount, null);
+        nodesCount = 0;
+        invalidateLengths(0);
+    }
+
+    public double getLatitude(int node) {
+        checkNode(node);
+        return latitudes[node];
+    }
+
+    public double getLongitude(int node) {
+        checkNode(node);
+        return longitudes[node];
+    }
+
+    public LatLng getNode(int node) {
+        checkNode(node);
+        return new LatLng(latitudes[node], longitudes[node]);
+    }
+
+    public GEOMETRY getSegmentGeometry(int segment) {
+        checkNode(segment + 1);
+        return segmentTypes[segment] == SEGMENT_RHUMB? GEOMETRY.RHUMB: GEOMETRY.GREAT_CIRCLE;
+    }
+
+    /** Segment i between nodes i and i + 1, created on the first request.
+     */
+    public GeodeticArc getSegment(int segment)
+    {
+        checkNode(segment + 1);
+        GeodeticArc arc = segments[segment];
+        if (null == arc)
+        {
+            LatLng begin = new LatLng(latitudes[segment], longitudes[segment]);
+            LatLng end = new LatLng(latitudes[segment + 1], longitudes[segment + 1]);
+            arc = segmentTypes[segment] == SEGMENT_RHUMB? new RhumbArc(begin, end): new GreatCircleArc(begin, end);
+            segments[segment] = arc;
         }
+        return arc;
+    }
 
-        segments.add(segment);
-        nodes.add(point);
+    private void checkNode(int node) {
+        if (node < 0 || node >= nodesCount)
+            throw new IndexOutOfBoundsException("Node " + node + " of " + nodesCount);
     }
 
+    /** Read only random access view of the nodes, node objects are created per access.
+     */
     public List<LatLng> getNodes() {
-        return nodes;
+        return nodesView;
     }
 
+    /** Read only random access view of the segments.
+     */
     public List<GeodeticArc> getSegments() {
-        return segments;
+        return segmentsView;
     }
 
     /** Get number of route nodes.
      */
     public int getNodesCount() {
-        return nodes.size();
+        return nodesCount;
     }
 
     /** Get number of route nodes.
      */
     public int getSegmentsCount() {
-        return segments.size();
+        return nodesCount > 0? nodesCount - 1: 0;
     }
 
     /** Get route length as sum of segment lengths in given units.
      */
-    public double length(GeodeticArc.DISTANCE_UNIT unit)
+    public double length(GeodeticArc.DISTANCE_UNIT unit) {
+        return nodesCount > 0? getCumulativeLengths(unit)[nodesCount - 1]: 0.0;
+    }
+
+    /** Length of the route from the first node to the node.
+     */
+    public double distanceTo(int node, GeodeticArc.DISTANCE_UNIT unit) {
+        checkNode(node);
+        return getCumulativeLengths(unit)[node];
+    }
+
+    /** Index of the segment the distance from the first node falls on, binary search of the cumulative lengths.
+     * @return -1 if the route has no segments.
+     */
+    public int segmentAt(double distance, GeodeticArc.DISTANCE_UNIT unit)
     {
-        double l = 0.0;
-        for(GeodeticArc segment : segments) {
-            l += segment.getLength(unit);
+        int segmentsCount = getSegmentsCount();
+        if (segmentsCount == 0)
+            return -1;
+
+        double[] cumulative = getCumulativeLengths(unit);
+        int index = Arrays.binarySearch(cumulative, 0, nodesCount, distance);
+        if (index < 0) {
+            index = -index - 2; // node before the insertion point
+        }
+        return Math.max(0, Math.min(index, segmentsCount - 1));
+    }
+
+    /** Point at the distance from the first node along the route, clamped to the route ends.
+     * @return null for the empty route.
+     */
+    public LatLng pointAtDistance(double distance, GeodeticArc.DISTANCE_UNIT unit)
+    {
+        if (nodesCount == 0)
+            return null;
+
+        int segment = segmentAt(distance, unit);
+        if (segment < 0)
+            return getNode(0);
+
+        double[] cumulative = getCumulativeLengths(unit);
+        double segmentLength = cumulative[segment + 1] - cumulative[segment];
+        double fraction = segmentLength > 0? (distance - cumulative[segment]) / segmentLength: 0;
+        fraction = Math.max(0, Math.min(1, fraction));
+
+        double[] point = new double[2];
+        GeodeticInterpolation.interpolate(getSegmentGeometry(segment), latitudes[segment], longitudes[segment],
+                latitudes[segment + 1], longitudes[segment + 1], fraction, point);
+        return new LatLng(point[0], point[1]);
+    }
+
+    /** Point at the fraction of the route length.
+     * @param unit Unit of the cumulative lengths used for the search, the one already indexed is the cheapest.
+     */
+    public LatLng pointAtFraction(double fraction, GeodeticArc.DISTANCE_UNIT unit) {
+        return pointAtDistance(fraction * length(unit), unit);
+    }
+
+    /** Cumulative lengths of the unit, invalid tail is recomputed from the last valid node.
+     */
+    private double[] getCumulativeLengths(GeodeticArc.DISTANCE_UNIT unit)
+    {
+        int u = unit.ordinal();
+        double[] cumulative = cumulativeLengths[u];
+        if (null == cumulative || cumulative.length < nodesCount) {
+            cumulative = null == cumulative? new double[latitudes.length]: Arrays.copyOf(cumulative, latitudes.length);
+            cumulativeLengths[u] = cumulative;
+        }
+
+        int valid = validLengths[u];
+        if (valid < nodesCount)
+        {
+            if (valid == 0 && nodesCount > 0) {
+                cumulative[0] = 0.0;
+                valid = 1;
+            }
+            for (int i = valid; i < nodesCount; i++) {
+                cumulative[i] = cumulative[i - 1] + getSegment(i - 1).getLength(unit);
+            }
+            validLengths[u] = nodesCount;
+        }
+        return cumulative;
+    }
+
+    private class NodesView extends AbstractList<LatLng> implements RandomAccess
+    {
+        @Override
+        public LatLng get(int location) {
+            return getNode(location);
+        }
+
+        @Override
+        public int size() {
+            return nodesCount;
+        }
+    }
+
+    private class SegmentsView extends AbstractList<GeodeticArc> implements RandomAccess
+    {
+        @Override
+        public GeodeticArc get(int location) {
+            return getSegment(location);
+        }
+
+        @Override
+        public int size() {
+            return getSegmentsCount();
         }
-        return l;
     }
 
     public void load()
     {
-        segments.clear();
-        nodes.clear();
+        // wait for the data still queued for writing
+        PersistenceWriter writer = PersistenceWriter.getInstance();
+        writer.flush(routeFile.getPath());
+        if (store != null) {
+            writer.flush(getWriteKey());
+        }
+
+        clear();
+
+        if (routeFile.exists()) {
+            if (loadRouteFile()) {
+                // the file is read back, the legacy strings it was migrated from aren't needed anymore
+                removeLegacy(writer);
+                return;
+            }
+            clear();
+        }
+
+        if (store != null && store.contains(STORAGE_KEY_ROUTE_NODES)) {
+            loadLegacy();
+            // migrate legacy strings to the binary file, they are kept until the file is read back
+            save();
+        }
+    }
+
+    /** Read the route file, a corrupt file is moved aside so the next save doesn't overwrite it.
+     * @return false if the file can't be read.
+     */
+    private boolean loadRouteFile()
+    {
+        try {
+            InputStream in = new FileInputStream(routeFile);
+            try {
+                Route2Codec.read(in, routeFile.length(), this);
+                return true;
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException | IllegalArgumentException x) {
+            File corruptFile = new File(routeFile.getPath() + ".corrupt");
+            Log.e(TAG, "Error reading route file, moved to " + corruptFile.getName(), x);
+            if (! routeFile.renameTo(corruptFile))
+                Log.e(TAG, "Cannot move corrupt route file " + routeFile);
+            return false;
+        }
+    }
 
+    private void loadLegacy()
+    {
         // segment class names
         String[] segmentClassNames = TextUtils.split(store.getString(STORAGE_KEY_ROUTE_SEGMENTS, ""), ",");
 
         // nodes & segments
         String[] pairs = TextUtils.split(store.getString(STORAGE_KEY_ROUTE_NODES, ""), ";");
+        ensureCapacity(pairs.length);
         for (int i = 0, s = pairs.length; i < s; i++)
         {
             String[] latLngString = TextUtils.split(pairs[i], ",");
-            LatLng p = new LatLng( Double.parseDouble(latLngString[0]), Double.parseDouble(latLngString[1]));
-
-            if (i == 0) {
-                nodes.add(p);
-                continue;
-            }
-
-            if (segmentClassNames[i - 1].equals(GreatCircleArc.class.getSimpleName()))
-                segments.add( new GreatCircleArc( nodes.getLast(), p));
-            else
-                segments.add( new RhumbArc( nodes.getLast(), p));
-
-            nodes.add(p);
+            byte segmentType = i > 0 && segmentClassNames[i - 1].equals(GreatCircleArc.class.getSimpleName())?
+                    SEGMENT_GREAT_CIRCLE: SEGMENT_RHUMB;
+            addNode(Double.parseDouble(latLngString[0]), Double.parseDouble(latLngString[1]), segmentType, null);
         }
     }
 
+    /** Encode the route now and write it on the writer thread. Legacy strings are removed when the file
+     * is loaded successfully.
+     * @throws IllegalArgumentException if a latitude is out of range.
+     */
     public void save()
     {
-        SharedPreferences.Editor ed = store.edit();
+        final ByteBuffer encoded = Route2Codec.encode(latitudes, longitudes, segmentTypes, nodesCount);
 
-        // nodes
-        StringBuilder builder = new StringBuilder();
-        for(LatLng p : nodes) {
-           builder.append(p.latitude).append(",").append(p.longitude).append(";");
-        }
-
-        if (builder.length() > 0)
-            builder.deleteCharAt(builder.length() - 1);
+        PersistenceWriter writer = PersistenceWriter.getInstance();
+        writer.writeFile(routeFile, encoded.remaining(), new PersistenceWriter.Content() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                Route2Codec.write(encoded, out);
+            }
+        });
+    }
 
-        ed.putString(STORAGE_KEY_ROUTE_NODES, builder.toString());
+    /** Queue removal of the stored route.
+     */
+    public void delete()
+    {
+        PersistenceWriter writer = PersistenceWriter.getInstance();
+        writer.deleteFile(routeFile);
+        removeLegacy(writer);
+    }
 
-        // segments
-        StringBuilder builder2 = new StringBuilder();
-        for (GeodeticArc s : segments) {
-            builder2.append(s.getClass().getSimpleName()).append(",");
+    /** Queue removal of the legacy strings, the preferences file is not touched if there are none.
+     */
+    private void removeLegacy(PersistenceWriter writer)
+    {
+        if (store != null && (store.contains(STORAGE_KEY_ROUTE_NODES) || store.contains(STORAGE_KEY_ROUTE_SEGMENTS))) {
+            writer.commit(getWriteKey(), store.edit()
+                    .remove(STORAGE_KEY_ROUTE_NODES)
+                    .remove(STORAGE_KEY_ROUTE_SEGMENTS));
         }
+    }
 
-        if (builder2.length() > 0)
-            builder2.deleteCharAt(builder2.length() - 1);
-
-        ed.putString(STORAGE_KEY_ROUTE_SEGMENTS, builder2.toString());
-
-        // commit
-        ed.commit();
+    /** Key of the queued legacy keys removal, nodes and segments are always removed together.
+     */
+    private String getWriteKey() {
+        return storageName + ":" + STORAGE_KEY_ROUTE_NODES;
     }
 }
@@ -0,0 +1,180 @@
+package com.sample.mapbox;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/** Binary storage format of the route, replaces the coordinates and segment class names strings
+ * kept in SharedPreferences.<br/><br/>
+ *
+ * Layout:
+ * <pre>
+ *   int     magic "RTE2", big endian
+ *   byte    format version
+ *   varint  node count
+ *   (node count - 1) bits, 8 per byte, least significant first: segment type, 1 for rhumb
+ *   node count x { zigzag varint latitude delta, zigzag varint longitude delta }
+ * </pre>
+ * Coordinates are fixed-point degrees with {@link #RESOLUTION} step, each node is delta-encoded to the previous one.
+ * Segment types go first so the decoder streams nodes straight into the route.
+ */
+final class Route2Codec
+{
+    static final int MAGIC = 0x52544532;
+
+    static final byte VERSION = 1;
+
+    /** Coordinate quantization step in degrees, about 1 cm.
+     */
+    static final double RESOLUTION = 1e-7;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private Route2Codec() {
+    }
+
+    /** Encode the route nodes, longitudes are normalized to [-180, 180).
+     * @param segmentTypes Type of the segment i between nodes i and i + 1, see {@link Route2#SEGMENT_RHUMB}.
+     * @throws IllegalArgumentException if a latitude is out of [-90, 90] or a coordinate isn't finite.
+     */
+    static ByteBuffer encode(double[] latitudes, double[] longitudes, byte[] segmentTypes, int nodesCount)
+    {
+        int segmentsCount = Math.max(0, nodesCount - 1);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 5 + (segmentsCount + 7) / 8 + nodesCount * 2 * 5);
+
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        putVarint(buffer, nodesCount);
+
+        for (int i = 0; i < segmentsCount; i += 8) {
+            int bits = 0;
+            for (int j = i; j < Math.min(i + 8, segmentsCount); j++) {
+                if (segmentTypes[j] == Route2.SEGMENT_RHUMB)
+                    bits |= 1 << (j - i);
+            }
+            buffer.put((byte) bits);
+        }
+
+        int lastLatitude = 0, lastLongitude = 0;
+        for (int i = 0; i < nodesCount; i++)
+        {
+            double longitudeDegrees = longitudes[i];
+            if (! (Math.abs(latitudes[i]) <= 90) || Double.isInfinite(longitudeDegrees) || Double.isNaN(longitudeDegrees))
+                throw new IllegalArgumentException("Route node " + i + " is out of range: " + latitudes[i] + ", " + longitudeDegrees);
+
+            // fixed-point range is about 214 degrees
+            int latitude = quantize(latitudes[i]);
+            int longitude = quantize(GeodeticInterpolation.normalizeLongitude(longitudeDegrees));
+            putVarint(buffer, zigzag(latitude - lastLatitude));
+            putVarint(buffer, zigzag(longitude - lastLongitude));
+            lastLatitude = latitude;
+            lastLongitude = longitude;
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Write the encoded route through the file channel, the stream is not closed.
+     */
+    static void write(ByteBuffer encoded, OutputStream out) throws IOException
+    {
+        WritableByteChannel channel = out instanceof FileOutputStream
+                ? ((FileOutputStream) out).getChannel()
+                : Channels.newChannel(out);
+
+        ByteBuffer buffer = encoded.duplicate();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        out.flush();
+    }
+
+    /** Decode the route into the empty route.
+     * @param length Source length in bytes, bounds the node count before the route is allocated.
+     */
+    static void read(InputStream source, long length, Route2 route) throws IOException
+    {
+        InputStream in = new BufferedInputStream(source, READ_BUFFER_SIZE);
+
+        int magic = (readByte(in) << 24) | (readByte(in) << 16) | (readByte(in) << 8) | readByte(in);
+        if (magic != MAGIC)
+            throw new IOException("Not a route file");
+
+        int version = readByte(in);
+        if (version != VERSION)
+            throw new IOException("Unsupported route file version " + version);
+
+        // every node takes 2 bytes at least
+        int nodesCount = readVarint(in);
+        if (nodesCount < 0 || 2L * nodesCount > length - 4 - 1 - 1)
+            throw new IOException("Route node count " + nodesCount + " exceeds the file length " + length);
+        int segmentsCount = Math.max(0, nodesCount - 1);
+        byte[] segmentBits = new byte[(segmentsCount + 7) / 8];
+        for (int i = 0; i < segmentBits.length; i++) {
+            segmentBits[i] = (byte) readByte(in);
+        }
+
+        route.ensureCapacity(nodesCount);
+
+        int latitude = 0, longitude = 0;
+        for (int i = 0; i < nodesCount; i++)
+        {
+            latitude += unzigzag(readVarint(in));
+            longitude += unzigzag(readVarint(in));
+
+            boolean isRhumb = i > 0 && (segmentBits[(i - 1) >> 3] & (1 << ((i - 1) & 7))) != 0;
+            route.add(latitude * RESOLUTION, longitude * RESOLUTION,
+                    isRhumb? Route2.GEOMETRY.RHUMB: Route2.GEOMETRY.GREAT_CIRCLE);
+        }
+    }
+
+    private static int quantize(double degrees) {
+        return (int) Math.round(degrees / RESOLUTION);
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value)
+    {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int readVarint(InputStream in) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte(in);
+            // the fifth byte holds the top 4 bits only
+            if (shift == 28 && (b & 0xf0) != 0)
+                throw new IOException("Malformed varint");
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0)
+            throw new EOFException();
+        return b;
+    }
+}
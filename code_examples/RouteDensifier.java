@@ -0,0 +1,325 @@
+package com.sample.mapbox;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Polylines of the route segments for rendering.<br/><br/>
+ *
+ * A segment is subdivided recursively in the world pixels of the zoom level: a piece is split while its
+ * middle point lies farther than {@link #TOLERANCE_PX} from the chord, so the sample count follows the
+ * arc curvature on the screen. Rhumb lines are straight in the mercator map and need no samples at all,
+ * long great circles get many samples at high zoom and a few at low zoom. Pieces longer than
+ * {@link #MAX_UNCHECKED_ANGLE} are always split, the middle point test misses the inflection of a great
+ * circle crossing the equator.
+ *
+ * Whole segments are densified up to {@link #MAX_CACHED_ZOOM} and cached per segment end points, geometry
+ * and zoom level, in LRU order limited by the cached points. Above it a trans-oceanic arc would take
+ * thousands of points mostly off the screen, so {@link #densifyVisible} subdivides only the pieces
+ * in the viewport and keeps the rest as chords, without caching. A route edit changes the segment end
+ * points, so stale entries are never hit and just age out.
+ *
+ * Points are float longitude, latitude offsets in degrees from an origin near them, absolute float
+ * degrees are too coarse for the high zoom pixels.
+ */
+public class RouteDensifier
+{
+    /** Allowed distance of the polyline from the arc, pixels.
+     */
+    static final double TOLERANCE_PX = 0.5;
+
+    /** Longest piece of the great circle accepted without the middle point test, radians.
+     */
+    static final double MAX_UNCHECKED_ANGLE = Math.toRadians(10);
+
+    /** Subdivision depth limit, up to 2^MAX_DEPTH pieces per segment.
+     */
+    static final int MAX_DEPTH = 14;
+
+    static final int TILE_SIZE = 256;
+
+    /** Highest zoom level densified for whole segments, higher zoom levels are densified by the viewport.
+     */
+    static final int MAX_CACHED_ZOOM = 10;
+
+    static final int MAX_ZOOM = 22;
+
+    /** Mercator latitude limit, the poles are projected to the infinity.
+     */
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private static final int DEFAULT_MAX_CACHED_POINTS = 64 * 1024;
+
+    private static final class Key
+    {
+        final double lat1, lon1, lat2, lon2;
+        final Route2.GEOMETRY geometry;
+        final int zoom;
+
+        Key(double lat1, double lon1, double lat2, double lon2, Route2.GEOMETRY geometry, int zoom) {
+            this.lat1 = lat1;
+            this.lon1 = lon1;
+            this.lat2 = lat2;
+            this.lon2 = lon2;
+            this.geometry = geometry;
+            this.zoom = zoom;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return zoom == key.zoom && geometry == key.geometry
+                    && Double.compare(lat1, key.lat1) == 0 && Double.compare(lon1, key.lon1) == 0
+                    && Double.compare(lat2, key.lat2) == 0 && Double.compare(lon2, key.lon2) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new double[] { lat1, lon1, lat2, lon2 }) * 31 * 31
+                    + geometry.hashCode() * 31 + zoom;
+        }
+    }
+
+    private final long maxCachedPoints;
+
+    /** Segment polylines in access order.
+     */
+    private final LinkedHashMap<Key, float[]> polylines = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long cachedPoints;
+
+    /** Subdivision state, valid during a single segment densification.
+     */
+    private float[] points = new float[64];
+    private int pointsLength;
+    private double originLatitude, originLongitude;
+    private double worldSize;
+    private final double[] middle = new double[2];
+
+    /** Viewport in the world pixels, y is the mercator one growing to the north.
+     */
+    private boolean hasWindow;
+    private double windowLeft, windowRight, windowBottom, windowTop;
+
+    public RouteDensifier() {
+        this(DEFAULT_MAX_CACHED_POINTS);
+    }
+
+    public RouteDensifier(long maxCachedPoints) {
+        this.maxCachedPoints = maxCachedPoints;
+    }
+
+    /** Cache zoom level of the map zoom.
+     */
+    public static int zoomBucket(float zoom) {
+        return Math.max(0, Math.min(MAX_CACHED_ZOOM, (int) Math.ceil(zoom)));
+    }
+
+    /** Polyline of the whole segment, densified for the zoom up to {@link #MAX_CACHED_ZOOM}.
+     * @return Longitude, latitude offsets from the segment start to its end, longitude offsets are continued
+     * across the antimeridian. The array is shared with the cache and must not be modified.
+     */
+    public synchronized float[] densify(Route2 route, int segment, float zoom)
+    {
+        Key key = new Key(route.getLatitude(segment), route.getLongitude(segment),
+                route.getLatitude(segment + 1), route.getLongitude(segment + 1),
+                route.getSegmentGeometry(segment), zoomBucket(zoom));
+
+        float[] polyline = polylines.get(key);
+        if (null == polyline) {
+            hasWindow = false;
+            polyline = densify(key.lat1, key.lon1, key.lat2, key.lon2, key.geometry, key.zoom, key.lat1, key.lon1);
+            polylines.put(key, polyline);
+            cachedPoints += polyline.length / 2;
+            evict();
+        }
+        return polyline;
+    }
+
+    /** Polyline of the segment densified in the viewport only, pieces outside are chords. Not cached.
+     * @param west East of the viewport may be less than its west across the antimeridian.
+     * @param originLatitude Origin of the offsets, e.g. the viewport center.
+     * @return Longitude, latitude offsets from the origin, the start offset is within 180 degrees.
+     */
+    public synchronized float[] densifyVisible(Route2 route, int segment, float zoom,
+                                               double south, double west, double north, double east,
+                                               double originLatitude, double originLongitude)
+    {
+        int level = Math.max(0, Math.min(MAX_ZOOM, (int) Math.ceil(zoom)));
+        double worldSize = (double) TILE_SIZE * (1 << level);
+
+        hasWindow = true;
+        windowLeft = west / 360 * worldSize;
+        windowRight = (east < west? east + 360: east) / 360 * worldSize;
+        windowBottom = mercatorPixelY(south, worldSize);
+        windowTop = mercatorPixelY(north, worldSize);
+
+        double lon1 = route.getLongitude(segment);
+        return densify(route.getLatitude(segment), lon1, route.getLatitude(segment + 1), route.getLongitude(segment + 1),
+                route.getSegmentGeometry(segment), level,
+                originLatitude, originLongitude + 360 * Math.round((lon1 - originLongitude) / 360));
+    }
+
+    /** Polyline of the whole route, densified for the zoom up to {@link #MAX_CACHED_ZOOM}.
+     * @return Longitude, latitude offsets from the first node, longitude offsets are continuous along the route.
+     */
+    public synchronized float[] densify(Route2 route, float zoom)
+    {
+        int nodesCount = route.getNodesCount();
+        if (nodesCount < 2)
+            return new float[2 * nodesCount];
+
+        int segmentsCount = nodesCount - 1;
+        float[][] segments = new float[segmentsCount][];
+        int length = 2;
+        for (int i = 0; i < segmentsCount; i++) {
+            segments[i] = densify(route, i, zoom);
+            length += segments[i].length - 2;
+        }
+
+        double firstLatitude = route.getLatitude(0), firstLongitude = route.getLongitude(0);
+        float[] result = new float[length];
+        int offset = 2;
+        // segment start longitude continued from the previous segment end
+        double start = firstLongitude;
+        for (int i = 0; i < segmentsCount; i++)
+        {
+            float[] polyline = segments[i];
+            double longitude = route.getLongitude(i);
+            start = longitude + 360 * Math.round((start - longitude) / 360);
+            double latitude = route.getLatitude(i);
+
+            // the joint is written by the previous segment
+            for (int j = 2; j < polyline.length; j += 2) {
+                result[offset++] = (float) (start - firstLongitude + polyline[j]);
+                result[offset++] = (float) (latitude - firstLatitude + polyline[j + 1]);
+            }
+            start += polyline[polyline.length - 2];
+        }
+        return result;
+    }
+
+    public synchronized void clear() {
+        polylines.clear();
+        cachedPoints = 0;
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<Key, float[]>> i = polylines.entrySet().iterator();
+        while (cachedPoints > maxCachedPoints && i.hasNext()) {
+            cachedPoints -= i.next().getValue().length / 2;
+            i.remove();
+        }
+    }
+
+    /** Densify the segment into offsets from the origin, the window is set up by the caller.
+     */
+    private float[] densify(double lat1, double lon1, double lat2, double lon2, Route2.GEOMETRY geometry, int level,
+                            double originLatitude, double originLongitude)
+    {
+        this.originLatitude = originLatitude;
+        this.originLongitude = originLongitude;
+        lon2 = lon1 + GeodeticInterpolation.normalizeLongitude(lon2 - lon1);
+
+        pointsLength = 0;
+        addPoint(lon1, lat1);
+        // straight line in the mercator map
+        if (geometry != Route2.GEOMETRY.RHUMB)
+        {
+            worldSize = (double) TILE_SIZE * (1 << level);
+            subdivide(lat1, lon1, lat2, lon2, 0, lon1, lat1, 1, lon2, lat2,
+                    GeodeticInterpolation.centralAngle(lat1, lon1, lat2, lon2), 0);
+        }
+        addPoint(lon2, lat2);
+        return Arrays.copyOf(points, pointsLength);
+    }
+
+    /** Add the inner points of the piece between the fractions t1 and t2 in order.
+     * @param angle Central angle of the piece, radians.
+     */
+    private void subdivide(double segmentLat1, double segmentLon1, double segmentLat2, double segmentLon2,
+                           double t1, double lon1, double lat1, double t2, double lon2, double lat2,
+                           double angle, int depth)
+    {
+        if (depth >= MAX_DEPTH)
+            return;
+
+        double t = (t1 + t2) / 2;
+        GeodeticInterpolation.greatCircle(segmentLat1, segmentLon1, segmentLat2, segmentLon2, t, middle, 0);
+        double lat = middle[0];
+        double lon = lon1 + GeodeticInterpolation.normalizeLongitude(middle[1] - lon1);
+
+        if (angle <= MAX_UNCHECKED_ANGLE)
+        {
+            double deviation = deviation(lon1, lat1, lon2, lat2, lon, lat);
+            if (deviation <= TOLERANCE_PX || (hasWindow && ! isInWindow(lon1, lat1, lon2, lat2, lon, lat, 2 * deviation)))
+                return;
+        }
+
+        subdivide(segmentLat1, segmentLon1, segmentLat2, segmentLon2, t1, lon1, lat1, t, lon, lat, angle / 2, depth + 1);
+        addPoint(lon, lat);
+        subdivide(segmentLat1, segmentLon1, segmentLat2, segmentLon2, t, lon, lat, t2, lon2, lat2, angle / 2, depth + 1);
+    }
+
+    /** Distance of the point from the chord in the world pixels.
+     */
+    private double deviation(double lon1, double lat1, double lon2, double lat2, double lon, double lat)
+    {
+        double x1 = pixelX(lon1), y1 = pixelY(lat1);
+        double dx = pixelX(lon2) - x1, dy = pixelY(lat2) - y1;
+        double px = pixelX(lon) - x1, py = pixelY(lat) - y1;
+
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0)
+            return Math.sqrt(px * px + py * py);
+        return Math.abs(px * dy - py * dx) / Math.sqrt(lengthSquared);
+    }
+
+    /** Whether the piece bounds extended by the margin overlap the window in any world instance.
+     */
+    private boolean isInWindow(double lon1, double lat1, double lon2, double lat2, double lon, double lat, double margin)
+    {
+        double bottom = Math.min(pixelY(lat), Math.min(pixelY(lat1), pixelY(lat2))) - margin;
+        double top = Math.max(pixelY(lat), Math.max(pixelY(lat1), pixelY(lat2))) + margin;
+        if (top < windowBottom || bottom > windowTop)
+            return false;
+
+        double left = Math.min(pixelX(lon), Math.min(pixelX(lon1), pixelX(lon2))) - margin;
+        double right = Math.max(pixelX(lon), Math.max(pixelX(lon1), pixelX(lon2))) + margin;
+        for (int world = -1; world <= 1; world++) {
+            double shift = world * worldSize;
+            if (right + shift >= windowLeft && left + shift <= windowRight)
+                return true;
+        }
+        return false;
+    }
+
+    private double pixelX(double longitude) {
+        return longitude / 360 * worldSize;
+    }
+
+    private double pixelY(double latitude) {
+        return mercatorPixelY(latitude, worldSize);
+    }
+
+    private static double mercatorPixelY(double latitude, double worldSize) {
+        double clamped = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+        return GeodeticInterpolation.mercatorY(clamped) / (2 * Math.PI) * worldSize;
+    }
+
+    private void addPoint(double longitude, double latitude)
+    {
+        if (pointsLength + 2 > points.length) {
+            points = Arrays.copyOf(points, points.length * 2);
+        }
+        points[pointsLength++] = (float) (longitude - originLongitude);
+        points[pointsLength++] = (float) (latitude - originLatitude);
+    }
+}
@@ -26,10 +26,10 @@ import android.widget.TextView;
 import android.widget.ToggleButton;
 
 import com.google.android.gms.maps.model.LatLng;
+import com.sample.dal.PersistenceWriter;
 
 import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.List;
 
 /**
  * Created by  Crysberry on 08.04.2015.
@@ -131,6 +131,13 @@ public class RouteFragment extends DialogFragment
         super.onSaveInstanceState(outState);
     }
 
+    @Override
+    public void onStop() {
+        super.onStop();
+        // route edits are written in background, make sure they land before the process may be killed
+        PersistenceWriter.getInstance().flush();
+    }
+
     private void setupViews(Bundle savedInstanceState)
     {
         // title
@@ -243,15 +250,12 @@ public class RouteFragment extends DialogFragment
         route.load();
 
         // nodes & segments
-        List<LatLng> nodes = route.getNodes();
-        List<GeodeticArc> segments = route.getSegments();
-
-        if (nodes.size() > 0) {
-            routePoints.add(new RoutePoint(nodes.get(0).latitude, nodes.get(0).longitude));
+        if (route.getNodesCount() > 0) {
+            routePoints.add(new RoutePoint(route.getLatitude(0), route.getLongitude(0)));
         }
 
-        for (int i = 1, s = nodes.size(); i < s; i++) {
-            routePoints.add(new RoutePoint(nodes.get(i).latitude, nodes.get(i).longitude, segments.get(i - 1)));
+        for (int i = 1, s = route.getNodesCount(); i < s; i++) {
+            routePoints.add(new RoutePoint(route.getLatitude(i), route.getLongitude(i), route.getSegment(i - 1)));
         }
 
         // empty source data
@@ -0,0 +1,311 @@
+package com.sample.mapbox;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.letsplaymobile.satbeams.geometry.GeodeticArc;
+import com.sample.dal.PersistenceWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/** Named routes kept on disk.<br/><br/>
+ *
+ * A small index file keeps a summary of every route: name, bounding box, length, nodes count and
+ * modification time, so the routes list is built without reading route bodies. Each route body is
+ * a {@link Route2} file of its own without preferences, loaded when the route is opened. A corrupt index is
+ * moved aside and rebuilt from the route files, the names it kept are lost and the routes are named anew.
+ *
+ * Index layout (big endian):
+ * <pre>
+ *   int     magic "RLIX"
+ *   short   format version
+ *   int     entry count
+ *   entry count x { UTF id, UTF name, double south, west, north, east, double length km, int nodes, long modified }
+ * </pre>
+ */
+public class RouteLibrary
+{
+    public static final String TAG = RouteLibrary.class.getSimpleName();
+
+    private static final String INDEX_FILE_NAME = "routes.index";
+
+    /** Prefix of the route body file names.
+     */
+    private static final String ROUTE_STORAGE_PREFIX = "RouteLibrary_";
+
+    /** Name of the routes recovered without the index, followed by the route number.
+     */
+    private static final String RECOVERED_ROUTE_NAME = "Recovered route ";
+
+    /** Zoom level the routes are densified at for the bounding box, about 1 km off the arc at most.
+     */
+    private static final float BOUNDS_ZOOM = 6;
+
+    static final int MAGIC = 0x524C4958;
+
+    static final short VERSION = 1;
+
+    /** Route summary kept in the index.<br/><br/>
+     *
+     * The bounding box includes the great circle bulges between the nodes. West is greater than east for the
+     * box across the antimeridian, a route around the world spans -180 to 180. Bounds of an empty route are NaN.
+     */
+    public static final class Entry
+    {
+        final String id;
+        public final String name;
+        public final double south, west, north, east;
+        public final double lengthKm;
+        public final int nodesCount;
+        public final long modified;
+
+        Entry(String id, String name, double south, double west, double north, double east,
+              double lengthKm, int nodesCount, long modified) {
+            this.id = id;
+            this.name = name;
+            this.south = south;
+            this.west = west;
+            this.north = north;
+            this.east = east;
+            this.lengthKm = lengthKm;
+            this.nodesCount = nodesCount;
+            this.modified = modified;
+        }
+    }
+
+    private final File filesDir;
+
+    private final File indexFile;
+
+    private final RouteDensifier densifier = new RouteDensifier();
+
+    /** Entries by name in the index order, read on the first access.
+     */
+    private Map<String, Entry> entries;
+
+    public RouteLibrary(Context context) {
+        this.filesDir = context.getFilesDir();
+        this.indexFile = new File(filesDir, INDEX_FILE_NAME);
+    }
+
+    /** Summaries of the stored routes, the route bodies are not read.
+     */
+    public synchronized List<Entry> list() {
+        return Collections.unmodifiableList(new ArrayList<>(getEntries().values()));
+    }
+
+    public synchronized boolean contains(String name) {
+        return getEntries().containsKey(name);
+    }
+
+    /** Load the route body.
+     * @return null if there is no route of the name.
+     */
+    public Route2 open(String name)
+    {
+        Entry entry;
+        synchronized (this) {
+            entry = getEntries().get(name);
+        }
+        if (null == entry)
+            return null;
+
+        Route2 route = new Route2(getRouteFile(entry.id));
+        route.load();
+        return route;
+    }
+
+    /** Store the route under the name, replaces the route of the same name.
+     */
+    public synchronized void save(String name, Route2 source)
+    {
+        Entry replaced = getEntries().get(name);
+        String id = replaced != null? replaced.id: UUID.randomUUID().toString();
+
+        // copy to the route's own file
+        Route2 route = new Route2(getRouteFile(id));
+        route.ensureCapacity(source.getNodesCount());
+        for (int i = 0, n = source.getNodesCount(); i < n; i++) {
+            route.add(source.getLatitude(i), source.getLongitude(i),
+                    i > 0? source.getSegmentGeometry(i - 1): Route2.GEOMETRY.GREAT_CIRCLE);
+        }
+        route.save();
+
+        double[] bounds = getBounds(source);
+        entries.put(name, new Entry(id, name, bounds[0], bounds[1], bounds[2], bounds[3],
+                source.length(GeodeticArc.DISTANCE_UNIT.km), source.getNodesCount(), System.currentTimeMillis()));
+        saveIndex();
+    }
+
+    /** South, west, north, east of the densified route.
+     */
+    private double[] getBounds(Route2 route)
+    {
+        if (route.getNodesCount() == 0)
+            return new double[] { Double.NaN, Double.NaN, Double.NaN, Double.NaN };
+
+        // offsets from the first node, longitudes are continuous across the antimeridian
+        float[] polyline = densifier.densify(route, BOUNDS_ZOOM);
+        double minLon = 0, maxLon = 0, minLat = 0, maxLat = 0;
+        for (int i = 0; i < polyline.length; i += 2) {
+            minLon = Math.min(minLon, polyline[i]);
+            maxLon = Math.max(maxLon, polyline[i]);
+            minLat = Math.min(minLat, polyline[i + 1]);
+            maxLat = Math.max(maxLat, polyline[i + 1]);
+        }
+
+        double latitude = route.getLatitude(0), longitude = route.getLongitude(0);
+        double south = Math.max(-90, latitude + minLat), north = Math.min(90, latitude + maxLat);
+        if (maxLon - minLon >= 360)
+            return new double[] { south, -180, north, 180 };
+        return new double[] { south, GeodeticInterpolation.normalizeLongitude(longitude + minLon),
+                north, GeodeticInterpolation.normalizeLongitude(longitude + maxLon) };
+    }
+
+    private File getRouteFile(String id) {
+        return new File(filesDir, ROUTE_STORAGE_PREFIX + id + Route2.ROUTE_FILE_SUFFIX);
+    }
+
+    public synchronized void delete(String name)
+    {
+        Entry entry = getEntries().remove(name);
+        if (null == entry)
+            return;
+
+        new Route2(getRouteFile(entry.id)).delete();
+        saveIndex();
+    }
+
+    private Map<String, Entry> getEntries()
+    {
+        if (null == entries) {
+            entries = new LinkedHashMap<>();
+            PersistenceWriter.getInstance().flush(indexFile.getPath());
+            if (indexFile.exists()) {
+                readIndex();
+            }
+        }
+        return entries;
+    }
+
+    private void readIndex()
+    {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("Not a route index file");
+                short version = in.readShort();
+                if (version != VERSION)
+                    throw new IOException("Unsupported route index version " + version);
+
+                for (int i = 0, count = in.readInt(); i < count; i++) {
+                    Entry entry = new Entry(in.readUTF(), in.readUTF(),
+                            in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+                            in.readDouble(), in.readInt(), in.readLong());
+                    entries.put(entry.name, entry);
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException x) {
+            File corruptFile = new File(indexFile.getPath() + ".corrupt");
+            Log.e(TAG, "Error reading route index, moved to " + corruptFile.getName(), x);
+            if (! indexFile.renameTo(corruptFile))
+                Log.e(TAG, "Cannot move corrupt route index " + indexFile);
+            rebuildIndex();
+        }
+    }
+
+    /** Recreate the entries from the route files in their modification order and save the index.
+     */
+    private void rebuildIndex()
+    {
+        entries.clear();
+
+        File[] routeFiles = filesDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return name.startsWith(ROUTE_STORAGE_PREFIX) && name.endsWith(Route2.ROUTE_FILE_SUFFIX);
+            }
+        });
+        if (null == routeFiles)
+            return;
+
+        Arrays.sort(routeFiles, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return l < r? -1: (l == r? 0: 1);
+            }
+        });
+
+        for (File routeFile : routeFiles)
+        {
+            String fileName = routeFile.getName();
+            String id = fileName.substring(ROUTE_STORAGE_PREFIX.length(), fileName.length() - Route2.ROUTE_FILE_SUFFIX.length());
+            long modified = routeFile.lastModified();
+
+            Route2 route = new Route2(routeFile);
+            route.load();
+            // a corrupt route file is moved aside by the load
+            if (! routeFile.exists())
+                continue;
+
+            String name = RECOVERED_ROUTE_NAME + (entries.size() + 1);
+            double[] bounds = getBounds(route);
+            entries.put(name, new Entry(id, name, bounds[0], bounds[1], bounds[2], bounds[3],
+                    route.length(GeodeticArc.DISTANCE_UNIT.km), route.getNodesCount(), modified));
+        }
+
+        Log.w(TAG, entries.size() + " routes recovered from the route files");
+        saveIndex();
+    }
+
+    private void saveIndex()
+    {
+        final List<Entry> snapshot = new ArrayList<>(entries.values());
+        PersistenceWriter.getInstance().writeFile(indexFile, 4 + 2 + 4 + snapshot.size() * 100,
+                new PersistenceWriter.Content() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException
+                    {
+                        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                        data.writeInt(MAGIC);
+                        data.writeShort(VERSION);
+                        data.writeInt(snapshot.size());
+                        for (Entry entry : snapshot) {
+                            data.writeUTF(entry.id);
+                            data.writeUTF(entry.name);
+                            data.writeDouble(entry.south);
+                            data.writeDouble(entry.west);
+                            data.writeDouble(entry.north);
+                            data.writeDouble(entry.east);
+                            data.writeDouble(entry.lengthKm);
+                            data.writeInt(entry.nodesCount);
+                            data.writeLong(entry.modified);
+                        }
+                        data.flush();
+                    }
+                });
+    }
+}
@@ -0,0 +1,127 @@
+package com.sample.mapbox;
+
+import android.graphics.PointF;
+
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.views.MapView;
+import com.mapbox.mapboxsdk.views.util.Projection;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+
+/** Immutable screen pixels to geographic coordinates converter.<br/><br/>
+ *
+ * Map view pixels relate to spherical mercator coordinates by an affine transform. The transform is derived
+ * once from three geographic reference points projected to the view pixels, so the snapshot doesn't touch
+ * the map view afterwards and can be used off the UI thread. The reference points are taken around the view
+ * centre and stepped towards the equator and the prime meridian by less than a quarter of the world width,
+ * so they stay inside the world even at low zoom where the view is taller than the world or shows several
+ * world copies. Points are converted in bulk from packed x, y pixel pairs to a packed coordinate sequence without
+ * intermediate objects. Longitudes are continuous along the points, a trace across the antimeridian goes
+ * beyond 180 degrees rather than jumping to the other side of the map.
+ */
+class ScreenToGeo
+{
+    /** Reference baseline, shortened to fit the view and a quarter of the world width.
+     */
+    private static final int DEFAULT_BASELINE = 256;
+
+    /** Mercator latitude limit, the world is square in the projected pixels.
+     */
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /** mercator = (a * x + b * y + c, d * x + e * y + f), longitude in degrees and mercator y in radians.
+     */
+    private final double a, b, c, d, e, f;
+
+    private ScreenToGeo(double a, double b, double c, double d, double e, double f) {
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+        this.e = e;
+        this.f = f;
+    }
+
+    /** Snapshot of the current map view projection, call on the UI thread.
+     */
+    static ScreenToGeo of(MapView mapView)
+    {
+        Projection projection = mapView.getProjection();
+        float worldWidth = projection.getWorldWidth();
+        int baseline = DEFAULT_BASELINE;
+        if (mapView.getWidth() > 0 && mapView.getHeight() > 0) {
+            baseline = Math.min(mapView.getWidth(), mapView.getHeight());
+        }
+        baseline = Math.max(1, Math.min(baseline, (int) (worldWidth / 4)));
+
+        // view centre, the projection clamps its latitude to the world
+        LatLng center = (LatLng) projection.fromPixels(mapView.getWidth() / 2, mapView.getHeight() / 2);
+        double x0 = GeodeticInterpolation.normalizeLongitude(center.getLongitude());
+        double y0 = GeodeticInterpolation.mercatorY(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, center.getLatitude())));
+
+        // steps of the baseline pixels towards the prime meridian and the equator stay inside the world
+        double deltaX = (x0 > 0? -360: 360) * baseline / worldWidth;
+        double deltaY = (y0 > 0? -2 * Math.PI: 2 * Math.PI) * baseline / worldWidth;
+
+        PointF p0 = projection.toPixels(new LatLng(latitudeOf(y0), x0), null);
+        PointF p1 = projection.toPixels(new LatLng(latitudeOf(y0), x0 + deltaX), null);
+        PointF p2 = projection.toPixels(new LatLng(latitudeOf(y0 + deltaY), x0), null);
+
+        // pixels = p0 + M * (x - x0, y - y0), invert M
+        double m00 = (p1.x - p0.x) / deltaX, m01 = (p2.x - p0.x) / deltaY;
+        double m10 = (p1.y - p0.y) / deltaX, m11 = (p2.y - p0.y) / deltaY;
+        double determinant = m00 * m11 - m01 * m10;
+        double a = m11 / determinant, b = -m01 / determinant;
+        double d = -m10 / determinant, e = m00 / determinant;
+
+        return new ScreenToGeo(
+                a, b, x0 - a * p0.x - b * p0.y,
+                d, e, y0 - d * p0.x - e * p0.y);
+    }
+
+    /** Convert packed pixel pairs to a packed coordinate sequence.
+     * @param pixels x, y pairs in the map view pixels.
+     * @param isClosed Whether to repeat the first point at the end to close a ring.
+     */
+    CoordinateSequence toSequence(float[] pixels, boolean isClosed)
+    {
+        int count = pixels.length / 2;
+        double[] lonLat = new double[2 * (isClosed && count > 0? count + 1: count)];
+        convert(pixels, count, lonLat);
+        if (isClosed && count > 0) {
+            lonLat[2 * count] = lonLat[0];
+            lonLat[2 * count + 1] = lonLat[1];
+        }
+        return new PackedCoordinateSequence.Double(lonLat, 2);
+    }
+
+    /** Longitude, latitude pairs, the first longitude is in [-180, 180) and the next ones are unwrapped
+     * against the previous one.
+     */
+    private void convert(float[] pixels, int count, double[] lonLat)
+    {
+        double previous = 0;
+        for (int i = 0; i < 2 * count; i += 2)
+        {
+            double x = pixels[i], y = pixels[i + 1];
+            double longitude = a * x + b * y + c;
+            lonLat[i] = i == 0
+                    ? GeodeticInterpolation.normalizeLongitude(longitude)
+                    : unwrap(longitude, previous);
+            lonLat[i + 1] = latitudeOf(d * x + e * y + f);
+            previous = lonLat[i];
+        }
+    }
+
+    /** Inverse of {@link GeodeticInterpolation#mercatorY(double)}.
+     */
+    private static double latitudeOf(double mercatorY) {
+        return Math.toDegrees(Math.atan(Math.sinh(mercatorY)));
+    }
+
+    /** Longitude continued from the reference one across the antimeridian.
+     */
+    private static double unwrap(double longitude, double reference) {
+        return longitude - 360 * Math.floor((longitude - reference + 180) / 360);
+    }
+}
@@ -0,0 +1,141 @@
+package com.sample.mapbox;
+
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.algorithm.LineIntersector;
+import com.vividsolutions.jts.algorithm.RobustLineIntersector;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.CoordinateSequences;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.operation.polygonize.Polygonizer;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/** Valid polygon of a closed finger trace.<br/><br/>
+ *
+ * Self-intersections are detected by a sweep over the ring segments ordered by their left end: only
+ * segments overlapping in x with the active ones are tested. A simple ring becomes a polygon as is.
+ * A self-intersecting ring is noded and polygonized into disjoint faces. A face is kept by the even-odd
+ * rule: its interior point crosses the trace ring an odd number of times. Kept faces are dissolved by
+ * the cascaded union into a valid (multi)polygon.
+ */
+class TraceSanitizer
+{
+    private TraceSanitizer() {
+    }
+
+    /** Valid polygonal geometry of the closed ring.
+     * @return null if the ring has less than three distinct points or encloses no area.
+     */
+    static Geometry sanitize(CoordinateSequence ring, GeometryFactory factory)
+    {
+        if (ring.size() < 4)
+            return null;
+
+        if (! isSelfIntersecting(ring)) {
+            if (CGAlgorithms.signedArea(ring) == 0)
+                return null;
+            // counter-clockwise shell, positive area is clockwise
+            if (CGAlgorithms.signedArea(ring) > 0) {
+                CoordinateSequences.reverse(ring);
+            }
+            return factory.createPolygon(factory.createLinearRing(ring), null);
+        }
+
+        // union of the line with itself nodes it at the self-intersections
+        LineString line = factory.createLineString(ring);
+        Polygonizer polygonizer = new Polygonizer();
+        polygonizer.add(line.union());
+
+        @SuppressWarnings("unchecked")
+        Collection<Polygon> faces = polygonizer.getPolygons();
+
+        // faces nested in other faces are their holes, each face is tested on its own
+        Coordinate[] ringCoordinates = ring.toCoordinateArray();
+        List<Polygon> inside = new ArrayList<>();
+        for (Polygon face : faces) {
+            if (CGAlgorithms.isPointInRing(face.getInteriorPoint().getCoordinate(), ringCoordinates))
+                inside.add(face);
+        }
+        if (inside.isEmpty())
+            return null;
+
+        Geometry result = CascadedPolygonUnion.union(inside);
+        return null == result || result.isEmpty()? null: result;
+    }
+
+    /** Sweep-line test for intersections of non-adjacent ring segments.
+     */
+    static boolean isSelfIntersecting(final CoordinateSequence ring)
+    {
+        final int segmentCount = ring.size() - 1;
+        Integer[] order = new Integer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(minX(ring, lhs), minX(ring, rhs));
+            }
+        });
+
+        LineIntersector intersector = new RobustLineIntersector();
+        Coordinate p0 = new Coordinate(), p1 = new Coordinate(), q0 = new Coordinate(), q1 = new Coordinate();
+
+        // segments started left of the sweep position, dropped once they end left of it
+        int[] active = new int[segmentCount];
+        int activeCount = 0;
+
+        for (int i = 0; i < segmentCount; i++)
+        {
+            int segment = order[i];
+            double sweepX = minX(ring, segment);
+
+            int kept = 0;
+            for (int j = 0; j < activeCount; j++)
+            {
+                int other = active[j];
+                if (maxX(ring, other) < sweepX)
+                    continue;
+                active[kept++] = other;
+
+                ring.getCoordinate(segment, p0);
+                ring.getCoordinate(segment + 1, p1);
+                ring.getCoordinate(other, q0);
+                ring.getCoordinate(other + 1, q1);
+                intersector.computeIntersection(p0, p1, q0, q1);
+
+                // adjacent segments share the vertex, they intersect only if the trace turns back along itself
+                if (isAdjacent(segment, other, segmentCount)
+                        ? intersector.getIntersectionNum() == LineIntersector.COLLINEAR_INTERSECTION
+                        : intersector.hasIntersection())
+                    return true;
+            }
+            activeCount = kept;
+            active[activeCount++] = segment;
+        }
+        return false;
+    }
+
+    private static boolean isAdjacent(int a, int b, int segmentCount) {
+        int d = Math.abs(a - b);
+        return d <= 1 || d == segmentCount - 1;
+    }
+
+    private static double minX(CoordinateSequence ring, int segment) {
+        return Math.min(ring.getX(segment), ring.getX(segment + 1));
+    }
+
+    private static double maxX(CoordinateSequence ring, int segment) {
+        return Math.max(ring.getX(segment), ring.getX(segment + 1));
+    }
+}
@@ -0,0 +1,148 @@
+package com.sample.tools;
+
+import com.sample.mapbox.CompiledCountryBoundaries;
+import com.sample.mapbox.CountryBoundariesCodec;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/** Build time converter of the countries KML to the {@link CompiledCountryBoundaries#ASSET_NAME} asset.<br/><br/>
+ *
+ * Usage: <code>CountryBoundariesCompiler countries.kml assets/country_boundaries.bin</code><br/>
+ *
+ * Desktop JVM tool of the build, kept in its own source set out of the app package so it isn't compiled into the APK.<br/>
+ *
+ * Every placemark is a country named by its name element, polygons of the placemarks of the same
+ * name are merged in the document order.
+ */
+public class CountryBoundariesCompiler
+{
+    private CountryBoundariesCompiler() {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 2) {
+            System.err.println("Usage: CountryBoundariesCompiler <countries.kml> <output.bin>");
+            System.exit(1);
+        }
+
+        Map<String, Geometry> countries = readKml(new File(args[0]), new GeometryFactory());
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]));
+        try {
+            CountryBoundariesCodec.write(countries, out);
+        }
+        finally {
+            out.close();
+        }
+        System.out.println(countries.size() + " countries written to " + args[1]);
+    }
+
+    /** Country geometries by placemark name in the document order.
+     */
+    static Map<String, Geometry> readKml(File kml, GeometryFactory factory) throws Exception
+    {
+        DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+        builderFactory.setNamespaceAware(true);
+        Document document = builderFactory.newDocumentBuilder().parse(kml);
+
+        Map<String, List<Polygon>> polygonsByName = new LinkedHashMap<>();
+        NodeList placemarks = document.getElementsByTagNameNS("*", "Placemark");
+        for (int i = 0; i < placemarks.getLength(); i++)
+        {
+            Element placemark = (Element) placemarks.item(i);
+            Element name = firstChild(placemark, "name");
+            if (null == name)
+                continue;
+
+            List<Polygon> polygons = polygonsByName.get(name.getTextContent().trim());
+            if (null == polygons) {
+                polygons = new ArrayList<>();
+                polygonsByName.put(name.getTextContent().trim(), polygons);
+            }
+
+            NodeList polygonElements = placemark.getElementsByTagNameNS("*", "Polygon");
+            for (int j = 0; j < polygonElements.getLength(); j++) {
+                polygons.add(readPolygon((Element) polygonElements.item(j), factory));
+            }
+        }
+
+        Map<String, Geometry> countries = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Polygon>> country : polygonsByName.entrySet())
+        {
+            List<Polygon> polygons = country.getValue();
+            if (polygons.isEmpty())
+                continue;
+            countries.put(country.getKey(), polygons.size() == 1
+                    ? polygons.get(0)
+                    : factory.createMultiPolygon(polygons.toArray(new Polygon[polygons.size()])));
+        }
+        return countries;
+    }
+
+    private static Polygon readPolygon(Element polygon, GeometryFactory factory) throws IOException
+    {
+        LinearRing shell = null;
+        List<LinearRing> holes = new ArrayList<>();
+        for (Node child = polygon.getFirstChild(); child != null; child = child.getNextSibling())
+        {
+            if (! (child instanceof Element))
+                continue;
+            NodeList coordinates = ((Element) child).getElementsByTagNameNS("*", "coordinates");
+            if (coordinates.getLength() == 0)
+                continue;
+
+            LinearRing ring = factory.createLinearRing(readCoordinates(coordinates.item(0).getTextContent()));
+            if ("outerBoundaryIs".equals(child.getLocalName()))
+                shell = ring;
+            else if ("innerBoundaryIs".equals(child.getLocalName()))
+                holes.add(ring);
+        }
+
+        if (null == shell)
+            throw new IOException("Polygon without outer boundary");
+        return factory.createPolygon(shell, holes.toArray(new LinearRing[holes.size()]));
+    }
+
+    /** KML coordinate tuples "longitude,latitude[,altitude]" separated by white space.
+     */
+    private static Coordinate[] readCoordinates(String text)
+    {
+        String[] tuples = text.trim().split("\\s+");
+        Coordinate[] coordinates = new Coordinate[tuples.length];
+        for (int i = 0; i < tuples.length; i++) {
+            String[] values = tuples[i].split(",");
+            coordinates[i] = new Coordinate(Double.parseDouble(values[0]), Double.parseDouble(values[1]));
+        }
+        return coordinates;
+    }
+
+    private static Element firstChild(Element parent, String localName)
+    {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element && localName.equals(child.getLocalName()))
+                return (Element) child;
+        }
+        return null;
+    }
+}